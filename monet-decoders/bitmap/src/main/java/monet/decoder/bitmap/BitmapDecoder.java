@@ -6,16 +6,18 @@ import android.view.View;
 import android.widget.ImageView;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import javax.annotation.Nullable;
 import monet.BitmapImage;
 import monet.DecodeException;
 import monet.Decoder;
 import monet.Image;
 import monet.Request;
-import monet.internal.Util;
 import okio.Buffer;
 import okio.BufferedSource;
 import okio.ByteString;
@@ -83,13 +85,82 @@ public class BitmapDecoder extends Decoder {
       subscriber.onSubscribe(new BitmapSubscription(subscriber, request));
   }
 
+  /**
+   * Decode the image once, at the largest size any request needs, and scale it down for the
+   * others.
+   */
+  @Override public Publisher<? extends List<Image>> publisher(List<Request> requests) {
+    return (Publisher<List<Image>>) subscriber ->
+        subscriber.onSubscribe(new SizesSubscription(subscriber, requests));
+  }
+
+  /** Chooses the sample size to decode an image at, from its full size. */
+  interface SampleSizer {
+    int sampleSize(int width, int height);
+  }
+
+  /**
+   * Decode a bitmap from {@code source}. With a {@code sizer}, first read only the image's bounds,
+   * then rewind and decode it at the sample size chosen from them.
+   */
+  static Bitmap decodeBitmap(BufferedSource source, Bitmap.Config config,
+      @Nullable SampleSizer sizer) throws DecodeException, IOException {
+    InputStream stream = source.inputStream();
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inPreferredConfig = config;
+
+    if (sizer != null) {
+      final MarkableInputStream markStream = new MarkableInputStream(stream);
+      stream = markStream;
+      markStream.allowMarksToExpire(false);
+      final long mark = markStream.savePosition(1024);
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeStream(stream, null, options);
+      markStream.reset(mark);
+      markStream.allowMarksToExpire(true);
+      options.inJustDecodeBounds = false;
+      options.inSampleSize = sizer.sampleSize(options.outWidth, options.outHeight);
+    }
+
+    final Bitmap bitmap = BitmapFactory.decodeStream(stream, null, options);
+    if (bitmap == null) throw new DecodeException("Failed to decode bitmap.");
+    return bitmap;
+  }
+
+  /** Returns the sample size which decodes an image of {@code width x height} to fit a request. */
+  static int calculateInSampleSize(Request request, int width, int height) {
+    final int reqWidth = request.targetWidth();
+    final int reqHeight = request.targetHeight();
+    int sampleSize = 1;
+    if (height > reqHeight || width > reqWidth) {
+      final int heightRatio;
+      final int widthRatio;
+      if (reqHeight == 0) {
+        sampleSize = (int) Math.floor((float) width / (float) reqWidth);
+      } else if (reqWidth == 0) {
+        sampleSize = (int) Math.floor((float) height / (float) reqHeight);
+      } else {
+        heightRatio = (int) Math.floor((float) height / (float) reqHeight);
+        widthRatio = (int) Math.floor((float) width / (float) reqWidth);
+        final View fitView = request.fitView();
+        if (fitView != null
+            && fitView instanceof ImageView
+            && ((ImageView) fitView).getScaleType() == ImageView.ScaleType.CENTER_INSIDE) {
+          sampleSize = Math.max(heightRatio, widthRatio);
+        } else {
+          sampleSize = Math.min(heightRatio, widthRatio);
+        }
+      }
+    }
+    return Math.max(sampleSize, 1);
+  }
+
   static class BitmapSubscription implements Subscription {
 
     private final Subscriber<? super Image> subscriber;
     private final Request request;
 
     private volatile boolean isCancelled;
-    private volatile BitmapFactory.Options options;
 
     BitmapSubscription(Subscriber<? super Image> subscriber, Request request) {
       this.subscriber = subscriber;
@@ -116,71 +187,81 @@ public class BitmapDecoder extends Decoder {
     }
 
     private BitmapImage decode(BufferedSource source) throws DecodeException, IOException {
-      InputStream stream = source.inputStream();
-      options = createBitmapOptions(request);
-      final boolean calculateSize = options != null && options.inJustDecodeBounds;
-
-      if (calculateSize) {
-        final MarkableInputStream markStream = new MarkableInputStream(stream);
-        stream = markStream;
-        markStream.allowMarksToExpire(false);
-        long mark = markStream.savePosition(1024);
-        BitmapFactory.decodeStream(stream, null, options);
-        calculateInSampleSize(request.targetWidth(), request.targetHeight(), options.outWidth,
-            options.outHeight, options, request);
-        try {
-          markStream.reset(mark);
-        } catch (IOException e) {
-          subscriber.onError(e);
-          Util.closeQuietly(source);
-        }
-        markStream.allowMarksToExpire(true);
-      }
-      final Bitmap bitmap = BitmapFactory.decodeStream(stream, null, options);
-      if (bitmap == null) throw new DecodeException("Failed to decode bitmap.");
-      return new BitmapImage(bitmap);
+      final SampleSizer sizer = request.hasTargetSize()
+          ? (width, height) -> calculateInSampleSize(request, width, height)
+          : null;
+      return new BitmapImage(decodeBitmap(source, request.config(), sizer));
     }
+  }
 
-    private static BitmapFactory.Options createBitmapOptions(Request request) {
-      final boolean justBounds = request.hasTargetSize();
-      final Bitmap.Config config = request.config();
-      final boolean hasConfig = config != null;
-      BitmapFactory.Options options = null;
-      if (justBounds || hasConfig) {
-        options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = justBounds;
-        if (hasConfig) {
-          options.inPreferredConfig = config;
-        }
+  static class SizesSubscription implements Subscription {
+
+    private final Subscriber<? super List<Image>> subscriber;
+    private final List<Request> requests;
+
+    private volatile boolean isCancelled;
+
+    SizesSubscription(Subscriber<? super List<Image>> subscriber, List<Request> requests) {
+      this.subscriber = subscriber;
+      this.requests = requests;
+    }
+
+    @Override public void request(long n) {
+      if (isCancelled) return;
+
+      final BufferedSource source = requests.get(0).source();
+      try {
+        subscriber.onNext(decode(source));
+        subscriber.onComplete();
+      } catch (DecodeException|IOException e) {
+        subscriber.onError(e);
       }
-      return options;
+
+      isCancelled = true;
     }
 
-    private static void calculateInSampleSize(int reqWidth, int reqHeight, int width, int height,
-        BitmapFactory.Options options, Request request) {
-      int sampleSize = 1;
-      if (height > reqHeight || width > reqWidth) {
-        final int heightRatio;
-        final int widthRatio;
-        if (reqHeight == 0) {
-          sampleSize = (int) Math.floor((float) width / (float) reqWidth);
-        } else if (reqWidth == 0) {
-          sampleSize = (int) Math.floor((float) height / (float) reqHeight);
-        } else {
-          heightRatio = (int) Math.floor((float) height / (float) reqHeight);
-          widthRatio = (int) Math.floor((float) width / (float) reqWidth);
-          final View fitView = request.fitView();
-          if (fitView != null
-              && fitView instanceof ImageView
-              && ((ImageView) fitView).getScaleType() == ImageView.ScaleType.CENTER_INSIDE) {
-            sampleSize = Math.max(heightRatio, widthRatio);
-          } else {
-            sampleSize = Math.min(heightRatio, widthRatio);
+    @Override public void cancel() {
+      if (isCancelled) return;
+      isCancelled = true;
+    }
+
+    private List<Image> decode(BufferedSource source) throws DecodeException, IOException {
+      // Find each request's sample size from the bounds, then decode at the smallest of them.
+      final int[] sampleSizes = new int[requests.size()];
+      Arrays.fill(sampleSizes, 1);
+      boolean hasTargetSize = false;
+      for (Request request : requests) {
+        hasTargetSize |= request.hasTargetSize();
+      }
+      final SampleSizer sizer = !hasTargetSize ? null : (width, height) -> {
+        int smallest = Integer.MAX_VALUE;
+        for (int i = 0; i < sampleSizes.length; i++) {
+          final Request request = requests.get(i);
+          if (request.hasTargetSize()) {
+            sampleSizes[i] = calculateInSampleSize(request, width, height);
           }
+          smallest = Math.min(smallest, sampleSizes[i]);
         }
+        return smallest;
+      };
+      final Bitmap bitmap = decodeBitmap(source, requests.get(0).config(), sizer);
+
+      int sampleSize = Integer.MAX_VALUE;
+      for (int s : sampleSizes) {
+        sampleSize = Math.min(sampleSize, s);
       }
-      options.inSampleSize = sampleSize;
-      options.inJustDecodeBounds = false;
+      final BitmapImage image = new BitmapImage(bitmap);
+      final List<Image> images = new ArrayList<>(sampleSizes.length);
+      for (int s : sampleSizes) {
+        if (s == sampleSize) {
+          images.add(image);
+        } else {
+          final int width = Math.max(bitmap.getWidth() * sampleSize / s, 1);
+          final int height = Math.max(bitmap.getHeight() * sampleSize / s, 1);
+          images.add(new BitmapImage(Bitmap.createScaledBitmap(bitmap, width, height, true)));
+        }
+      }
+      return images;
     }
   }
 }
@@ -0,0 +1,138 @@
+package monet.decoder.bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import monet.Decoder;
+import monet.Image;
+import monet.Request;
+import okio.Buffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class BitmapDecoderTest {
+  private static final int WIDTH = 100;
+  private static final int HEIGHT = 60;
+
+  private final Decoder decoder = BitmapDecoder.create();
+  private final byte[] bmp = bmp(WIDTH, HEIGHT);
+
+  @Test
+  public void decodesAtSampleSize() {
+    List<Image> images = decode(Request.builder(bmp).size(25, 0).build());
+    assertEquals("images", 1, images.size());
+    assertEquals("width", 25, images.get(0).width());
+    assertEquals("height", 15, images.get(0).height());
+  }
+
+  @Test
+  public void decodesSeveralSizesLikeSingleSizes() {
+    int[][] sizes = {{0, 0}, {50, 0}, {25, 0}, {0, 30}};
+
+    List<Request> requests = new ArrayList<>();
+    Request first = Request.builder(bmp).build();
+    for (int[] size : sizes) {
+      requests.add(first.newBuilder().size(size[0], size[1]).build());
+    }
+    SizesSubscriber subscriber = new SizesSubscriber();
+    decoder.publisher(requests).subscribe(subscriber);
+    subscriber.subscription.request(1);
+    assertNull("error", subscriber.error);
+    assertEquals("complete", true, subscriber.complete);
+    assertEquals("lists", 1, subscriber.lists.size());
+    List<Image> images = subscriber.lists.get(0);
+    assertEquals("images", sizes.length, images.size());
+
+    for (int i = 0; i < sizes.length; i++) {
+      Image single = decode(Request.builder(bmp).size(sizes[i][0], sizes[i][1]).build()).get(0);
+      assertEquals("width " + i, single.width(), images.get(i).width());
+      assertEquals("height " + i, single.height(), images.get(i).height());
+    }
+  }
+
+  private List<Image> decode(Request request) {
+    List<Image> images = new ArrayList<>();
+    Throwable[] error = new Throwable[1];
+    decoder.publisher(request).subscribe(new Subscriber<Image>() {
+      @Override public void onSubscribe(Subscription subscription) {
+        subscription.request(1);
+      }
+
+      @Override public void onNext(Image image) {
+        images.add(image);
+      }
+
+      @Override public void onError(Throwable t) {
+        error[0] = t;
+      }
+
+      @Override public void onComplete() {
+      }
+    });
+    assertNull("error", error[0]);
+    return images;
+  }
+
+  /** Returns an uncompressed 24-bit BMP of a gradient. */
+  static byte[] bmp(int width, int height) {
+    final int stride = (width * 3 + 3) & ~3;
+    final Buffer buffer = new Buffer()
+        // File header
+        .writeUtf8("BM")
+        .writeIntLe(54 + stride * height)
+        .writeIntLe(0)
+        .writeIntLe(54)
+        // Info header
+        .writeIntLe(40)
+        .writeIntLe(width)
+        .writeIntLe(height)
+        .writeShortLe(1)
+        .writeShortLe(24)
+        .writeIntLe(0)
+        .writeIntLe(stride * height)
+        .writeIntLe(2835)
+        .writeIntLe(2835)
+        .writeIntLe(0)
+        .writeIntLe(0);
+    // Rows are stored bottom-up, each padded to four bytes.
+    for (int y = height - 1; y >= 0; y--) {
+      for (int x = 0; x < width; x++) {
+        buffer.writeByte(x * 255 / width).writeByte(y * 255 / height).writeByte(0x80);
+      }
+      for (int pad = width * 3; pad < stride; pad++) {
+        buffer.writeByte(0);
+      }
+    }
+    return buffer.readByteArray();
+  }
+
+  /** Records the lists of images a publisher of several sizes emits. */
+  static final class SizesSubscriber implements Subscriber<List<Image>> {
+    final List<List<Image>> lists = new ArrayList<>();
+    Subscription subscription;
+    boolean complete;
+    Throwable error;
+
+    @Override public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override public void onNext(List<Image> images) {
+      lists.add(images);
+    }
+
+    @Override public void onError(Throwable error) {
+      this.error = error;
+    }
+
+    @Override public void onComplete() {
+      complete = true;
+    }
+  }
+}
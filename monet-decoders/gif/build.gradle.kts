@@ -24,5 +24,6 @@ dependencies {
         implementation(reactivestreams)
         testImplementation(junit)
         testImplementation(hamcrest)
+        testImplementation(robolectric)
     }
 }
@@ -0,0 +1,457 @@
+package monet.decoder.gif;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.annotation.Nullable;
+
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_LEAVE;
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_RESTORE;
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_UNKNOWN;
+
+/**
+ * Composites decoded GIF frames onto a reusable ARGB canvas.
+ * <p>
+ * Two canvases live as long as the compositor: the current canvas, which each frame is drawn onto
+ * in place, and the restore canvas, which holds the last frame to be left in place for a later
+ * {@code RESTORE} frame. The restore canvas is only allocated once a frame needs it. Each canvas
+ * tracks the region where it may differ from the background and from the other canvas, so that
+ * disposal only ever touches those regions.
+ * <p>
+ * With a sample size above one, the canvas is smaller than the GIF's logical screen and each
+ * canvas pixel takes its color from the single frame pixel at its top-left corner, so that
+ * transparent pixels and disposal behave exactly as at full size.
+ * <p>
+ * An interlaced frame may also be {@linkplain #preview(GifSource.Frame, byte[], int) previewed}
+ * after each of its first three passes, onto a third scratch canvas so that the real canvas is
+ * untouched until the whole frame is composed.
+ * <p>
+ * Very large frames may be drawn on a {@linkplain #setPool(ForkJoinPool, int, int) fork-join
+ * pool}, in bands of rows.
+ */
+final class Compositor {
+  /** The number of canvas pixels a frame must cover to be drawn in parallel by default. */
+  static final int DEFAULT_PARALLEL_THRESHOLD = 1024 * 1024;
+
+  /** The number of canvas pixels to draw in each parallel task by default. */
+  static final int DEFAULT_BAND_SIZE = 64 * 1024;
+
+  final int width;
+  final int height;
+  final int sampleSize;
+
+  private final int background;
+  private int[] canvas;
+  private int[] restore;
+  private int[] scratch;
+
+  /** The region of {@link #canvas} which may differ from the background. */
+  private final Bounds painted = new Bounds();
+
+  /** The region of {@link #canvas} which may differ from {@link #restore}. */
+  private final Bounds unsaved = new Bounds();
+
+  /** The region of {@link #canvas} changed by the current frame. */
+  private final Bounds dirty = new Bounds();
+
+  private boolean hasFrame;
+  private boolean hasRestore;
+  private boolean restoreIsCanvas;
+  private boolean invalidated = true;
+  private boolean began;
+  private volatile boolean cancelled;
+  @Nullable private ForkJoinPool pool;
+  private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+  private int bandSize = DEFAULT_BAND_SIZE;
+
+  Compositor(GifSource.Header header, int sampleSize) {
+    this.width = (header.width + sampleSize - 1) / sampleSize;
+    this.height = (header.height + sampleSize - 1) / sampleSize;
+    this.sampleSize = sampleSize;
+    this.background = header.backgroundColor;
+  }
+
+  /**
+   * Draw {@code frame} onto the canvas, first disposing of the canvas as its disposal method
+   * requires. Returns the canvas, which is only valid until the next call, and records the region
+   * which changed in the frame's {@linkplain GifSource.Frame#dirtyBounds dirty bounds}.
+   */
+  int[] compose(GifSource.Frame frame, byte[] indexData) {
+    if (!began) begin(frame, false);
+    began = false;
+    draw(frame, indexData, canvas, 1);
+    return end(frame);
+  }
+
+  /**
+   * Dispose of the canvas for {@code frame}, which is opaque and covers the whole canvas, and
+   * return the canvas for its pixels to be written straight into. Since every pixel is about to be
+   * replaced, nothing is cleared or restored; only a copy which a later frame may restore is
+   * saved. The frame must then be {@linkplain #composeCovering(GifSource.Frame) composed}.
+   */
+  int[] beginCovering(GifSource.Frame frame) {
+    begin(frame, true);
+    return canvas;
+  }
+
+  /** Finish a frame whose pixels were written into the canvas from {@link #beginCovering}. */
+  int[] composeCovering(GifSource.Frame frame) {
+    began = false;
+    dirty.union(0, 0, width, height);
+    painted.union(0, 0, width, height);
+    unsaved.union(0, 0, width, height);
+    return end(frame);
+  }
+
+  private int[] end(GifSource.Frame frame) {
+    frame.dirtyBounds.set(dirty.left, dirty.top, dirty.right, dirty.bottom);
+
+    hasFrame = true;
+    if (frame.disposalMethod == DISPOSAL_METHOD_UNKNOWN
+        || frame.disposalMethod == DISPOSAL_METHOD_LEAVE) {
+      hasRestore = true;
+      restoreIsCanvas = true;
+    } else {
+      restoreIsCanvas = false;
+    }
+    return canvas;
+  }
+
+  /**
+   * Draw the first {@code passes} interlace passes of {@code frame} onto a copy of the canvas,
+   * filling each missing row with the nearest decoded row above it. Returns the copy, which is
+   * only valid until the next call. The frame must still be {@linkplain #compose composed} once
+   * all of its data is decoded.
+   */
+  int[] preview(GifSource.Frame frame, byte[] indexData, int passes) {
+    if (!began) begin(frame, false);
+    if (scratch == null) scratch = new int[width * height];
+    System.arraycopy(canvas, 0, scratch, 0, canvas.length);
+    draw(frame, indexData, scratch, 16 >> passes);
+    frame.dirtyBounds.set(dirty.left, dirty.top, dirty.right, dirty.bottom);
+    return scratch;
+  }
+
+  /**
+   * Returns how many of the four interlace passes of {@code frame} are complete once {@code
+   * decoded} indices have been decoded.
+   */
+  static int interlacePasses(GifSource.Frame frame, int decoded) {
+    final int rows = frame.imageWidth > 0 ? decoded / frame.imageWidth : 0;
+    final int h = frame.imageHeight;
+    return rows >= h ? 4
+        : rows >= (h + 1) / 2 ? 3
+        : rows >= (h + 3) / 4 ? 2
+        : rows >= (h + 7) / 8 ? 1
+        : 0;
+  }
+
+  /**
+   * Dispose of the canvas as {@code frame} requires, before any of the frame is drawn. If the
+   * frame is {@code covering}, the canvas is about to be overwritten and needn't be cleared.
+   */
+  private void begin(GifSource.Frame frame, boolean covering) {
+    began = true;
+    dirty.setEmpty();
+    if (canvas == null) {
+      canvas = new int[width * height];
+      painted.set(0, 0, width, height);
+      unsaved.set(0, 0, width, height);
+    }
+    if (invalidated) {
+      // Whatever was shown before is unrelated to this frame.
+      dirty.set(0, 0, width, height);
+      invalidated = false;
+    }
+
+    dispose(frame.disposalMethod, covering);
+  }
+
+  /**
+   * Stop drawing at the end of the current row, leaving the canvas incomplete. Called from another
+   * thread when decoding is cancelled; the compositor must not be used afterwards.
+   */
+  void cancel() {
+    cancelled = true;
+  }
+
+  /** Mark the whole canvas as changed in the next frame. */
+  void invalidate() {
+    invalidated = true;
+  }
+
+  /** Returns a copy of the canvas state after the most recent frame. */
+  State checkpoint() {
+    final State state = new State();
+    state.canvas = canvas.clone();
+    state.restore = hasRestore && !restoreIsCanvas ? restore.clone() : null;
+    state.painted.union(painted);
+    state.hasFrame = hasFrame;
+    state.hasRestore = hasRestore;
+    state.restoreIsCanvas = restoreIsCanvas;
+    return state;
+  }
+
+  /** Return to {@code state}, or to a blank canvas if null. */
+  void reset(@Nullable State state) {
+    invalidated = true;
+    began = false;
+    if (state == null) {
+      hasFrame = false;
+      hasRestore = false;
+      restoreIsCanvas = false;
+      if (canvas != null) {
+        painted.set(0, 0, width, height);
+        unsaved.set(0, 0, width, height);
+      }
+      return;
+    }
+
+    if (canvas == null) canvas = new int[width * height];
+    System.arraycopy(state.canvas, 0, canvas, 0, canvas.length);
+    if (state.restore != null) {
+      if (restore == null) restore = new int[width * height];
+      System.arraycopy(state.restore, 0, restore, 0, restore.length);
+    }
+    painted.setEmpty();
+    painted.union(state.painted);
+    unsaved.set(0, 0, width, height);
+    hasFrame = state.hasFrame;
+    hasRestore = state.hasRestore;
+    restoreIsCanvas = state.restoreIsCanvas;
+  }
+
+  private void dispose(int disposalMethod, boolean covering) {
+    switch (disposalMethod) {
+      case DISPOSAL_METHOD_LEAVE:
+        if (!hasFrame && !covering) clear();
+        break;
+
+      case DISPOSAL_METHOD_RESTORE:
+        if (!hasRestore) {
+          if (!covering) clear();
+        } else if (restoreIsCanvas) {
+          save();
+        } else if (!covering) {
+          restore();
+        }
+        break;
+
+      case DISPOSAL_METHOD_UNKNOWN:
+        if (!covering) clear();
+        break;
+
+      default:
+        // Keep the current canvas around if a later frame may want to restore it.
+        if (restoreIsCanvas) save();
+        if (!covering) clear();
+    }
+  }
+
+  /** Fill the canvas with the background. */
+  private void clear() {
+    if (painted.isEmpty()) return;
+    for (int y = painted.top; y < painted.bottom; y++) {
+      final int pos = y * width;
+      Arrays.fill(canvas, pos + painted.left, pos + painted.right, background);
+    }
+    dirty.union(painted);
+    unsaved.union(painted);
+    painted.setEmpty();
+  }
+
+  /** Copy the canvas to the restore canvas. */
+  private void save() {
+    if (restore == null) {
+      restore = new int[width * height];
+      unsaved.set(0, 0, width, height);
+    }
+    copy(canvas, restore, unsaved);
+    unsaved.setEmpty();
+  }
+
+  /** Copy the restore canvas to the canvas. */
+  private void restore() {
+    copy(restore, canvas, unsaved);
+    dirty.union(unsaved);
+    painted.union(unsaved);
+    unsaved.setEmpty();
+  }
+
+  private void copy(int[] src, int[] dst, Bounds bounds) {
+    if (bounds.isEmpty()) return;
+    final int w = bounds.right - bounds.left;
+    for (int y = bounds.top; y < bounds.bottom; y++) {
+      final int pos = y * width + bounds.left;
+      System.arraycopy(src, pos, dst, pos, w);
+    }
+  }
+
+  /**
+   * Draw frames covering at least {@code threshold} canvas pixels on {@code pool}, in bands of rows
+   * of about {@code bandSize} pixels each, or always on the calling thread if null.
+   */
+  void setPool(@Nullable ForkJoinPool pool, int threshold, int bandSize) {
+    this.pool = pool;
+    this.parallelThreshold = threshold;
+    this.bandSize = bandSize;
+  }
+
+  /**
+   * Draw {@code frame} onto {@code canvas}. An interlaced frame drawn with a {@code step} above
+   * one only draws rows from its earlier passes, with each one repeated {@code step} times.
+   */
+  private void draw(GifSource.Frame frame, byte[] indexData, int[] canvas, int step) {
+    final int s = sampleSize;
+    final int frameLeft = frame.imageLeftPosition;
+    final int frameTop = frame.imageTopPosition;
+
+    // The canvas pixels whose samples fall within the frame.
+    final int left = (frameLeft + s - 1) / s;
+    final int top = (frameTop + s - 1) / s;
+    final int right = Math.min((frameLeft + frame.imageWidth + s - 1) / s, width);
+    final int bottom = Math.min((frameTop + frame.imageHeight + s - 1) / s, height);
+    if (left >= right || top >= bottom) return;
+
+    if (pool != null && (long) (right - left) * (bottom - top) >= parallelThreshold) {
+      // Each canvas row depends only on one row of the frame, so bands of rows are independent.
+      pool.invoke(new DrawTask(frame, indexData, canvas, step, top, bottom));
+    } else {
+      drawRows(frame, indexData, canvas, step, top, bottom);
+    }
+
+    dirty.union(left, top, right, bottom);
+    painted.union(left, top, right, bottom);
+    unsaved.union(left, top, right, bottom);
+  }
+
+  /** Draw the canvas rows from {@code top} to {@code bottom} of {@code frame}. */
+  private void drawRows(GifSource.Frame frame, byte[] indexData, int[] canvas, int step, int top,
+      int bottom) {
+    final int[] colors = frame.activeColorTable;
+    final int transparentIndex = frame.transparentColorFlag ? frame.transparentColorIndex : -1;
+
+    final int s = sampleSize;
+    final int w = frame.imageWidth;
+    final int h = frame.imageHeight;
+    final int frameLeft = frame.imageLeftPosition;
+    final int frameTop = frame.imageTopPosition;
+    final int left = (frameLeft + s - 1) / s;
+    final int right = Math.min((frameLeft + w + s - 1) / s, width);
+
+    int n1 = 0, n2 = 0, n3 = 0;
+    if (frame.interlaceFlag) {
+      n1 = (h + 7) / 8;
+      n2 = (h + 3) / 4;
+      n3 = (h + 1) / 2;
+    }
+
+    final int cw = right - left;
+    final int dx0 = left * s - frameLeft;
+    for (int y = top; y < bottom; y++) {
+      if (cancelled) return;
+      int dy = y * s - frameTop;
+      final int sy;
+      if (frame.interlaceFlag) {
+        dy -= dy % step;
+        sy = dy % 8 == 0 ?       dy      / 8
+           : dy % 4 == 0 ? n1 + (dy - 4) / 8
+           : dy % 2 == 0 ? n2 + (dy - 2) / 4
+           :               n3 + (dy - 1) / 2;
+      } else {
+        sy = dy;
+      }
+
+      final int src = sy * w + dx0;
+      final int dst = y * width + left;
+      for (int x = 0; x < cw; x++) {
+        final int index = indexData[src + x * s] & 0xff;
+        if (index != transparentIndex) {
+          canvas[dst + x] = colors[index];
+        }
+      }
+    }
+  }
+
+  /** Draws a band of rows, splitting it in half until each band is small enough. */
+  private final class DrawTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final GifSource.Frame frame;
+    private final byte[] indexData;
+    private final int[] canvas;
+    private final int step;
+    private final int top;
+    private final int bottom;
+
+    DrawTask(GifSource.Frame frame, byte[] indexData, int[] canvas, int step, int top,
+        int bottom) {
+      this.frame = frame;
+      this.indexData = indexData;
+      this.canvas = canvas;
+      this.step = step;
+      this.top = top;
+      this.bottom = bottom;
+    }
+
+    @Override protected void compute() {
+      // A single row can't be split any further, however wide it is.
+      if (bottom - top <= 1 || (long) (bottom - top) * width <= bandSize) {
+        drawRows(frame, indexData, canvas, step, top, bottom);
+        return;
+      }
+      final int middle = (top + bottom) >>> 1;
+      invokeAll(new DrawTask(frame, indexData, canvas, step, top, middle),
+          new DrawTask(frame, indexData, canvas, step, middle, bottom));
+    }
+  }
+
+  /** A saved copy of the canvas state, from which compositing can resume. */
+  static final class State {
+    int[] canvas;
+    @Nullable int[] restore;
+    final Bounds painted = new Bounds();
+    boolean hasFrame;
+    boolean hasRestore;
+    boolean restoreIsCanvas;
+  }
+
+  /** A mutable rectangle of canvas pixels. */
+  static final class Bounds {
+    int left;
+    int top;
+    int right;
+    int bottom;
+
+    boolean isEmpty() {
+      return left >= right || top >= bottom;
+    }
+
+    void set(int left, int top, int right, int bottom) {
+      this.left = left;
+      this.top = top;
+      this.right = right;
+      this.bottom = bottom;
+    }
+
+    void setEmpty() {
+      set(0, 0, 0, 0);
+    }
+
+    void union(Bounds other) {
+      union(other.left, other.top, other.right, other.bottom);
+    }
+
+    void union(int left, int top, int right, int bottom) {
+      if (left >= right || top >= bottom) return;
+      if (isEmpty()) {
+        set(left, top, right, bottom);
+      } else {
+        if (left < this.left) this.left = left;
+        if (top < this.top) this.top = top;
+        if (right > this.right) this.right = right;
+        if (bottom > this.bottom) this.bottom = bottom;
+      }
+    }
+  }
+}
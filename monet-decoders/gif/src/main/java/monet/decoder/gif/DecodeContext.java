@@ -0,0 +1,66 @@
+package monet.decoder.gif;
+
+import java.util.ArrayDeque;
+
+/**
+ * The LZW decoder and index buffer which a {@link GifSource} decodes frames with.
+ * <p>
+ * Contexts are borrowed from a small pool shared by all sources and returned when a source is
+ * closed, so that the many short-lived sources of a scrolling feed reuse the same tables rather
+ * than each allocating their own. Index buffers for very large frames are not kept in the pool.
+ */
+final class DecodeContext {
+  static final int MAX_POOL_SIZE = 8;
+  static final int MAX_POOLED_INDEX_SIZE = 1024 * 1024;
+
+  private static final ArrayDeque<DecodeContext> pool = new ArrayDeque<>(MAX_POOL_SIZE);
+
+  final LzwDecoder lzw = new LzwDecoder();
+  private byte[] indexData;
+
+  private DecodeContext() {
+  }
+
+  /** Returns a context from the pool, or a new one if the pool is empty. */
+  static DecodeContext acquire() {
+    synchronized (pool) {
+      final DecodeContext context = pool.poll();
+      if (context != null) return context;
+    }
+    return new DecodeContext();
+  }
+
+  /**
+   * Returns an index buffer of at least {@code count} bytes. The same buffer is returned until a
+   * larger one is needed.
+   */
+  byte[] indexData(int count) {
+    if (indexData == null || indexData.length < count) {
+      indexData = new byte[count];
+    }
+    return indexData;
+  }
+
+  /** The index buffer last returned by {@link #indexData(int)}. */
+  byte[] indexData() {
+    return indexData;
+  }
+
+  /** The number of contexts in the pool. */
+  static int poolSize() {
+    synchronized (pool) {
+      return pool.size();
+    }
+  }
+
+  /** Return this context to the pool. It must not be used again. */
+  void release() {
+    lzw.clear();
+    if (indexData != null && indexData.length > MAX_POOLED_INDEX_SIZE) {
+      indexData = null;
+    }
+    synchronized (pool) {
+      if (pool.size() < MAX_POOL_SIZE) pool.push(this);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package monet.decoder.gif;
+
+import android.graphics.Rect;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import javax.annotation.Nullable;
+import monet.BufferImage;
+import monet.Image;
+import monet.IndexedImage;
+
+/**
+ * Keeps the images emitted during the first pass through an animation, so that later loops can
+ * be replayed without decoding again.
+ * <p>
+ * The cache either holds every frame or none of them: a partial loop is no use, because the frames
+ * after it would still have to be composited from the start. Images are kept in memory until they
+ * exceed the byte budget. Past that point they are written to a {@link FrameSpill} in the spill
+ * directory, if there is one, and read back as memory-mapped views. Otherwise they are all
+ * dropped and the cache stays {@linkplain #isOverflowed() overflowed}.
+ */
+final class FrameCache implements Closeable {
+  private final long maxSize;
+  @Nullable private final File spillDirectory;
+  private final ArrayList<Entry> entries = new ArrayList<>();
+  private long size;
+  private boolean overflowed;
+  @Nullable private FrameSpill spill;
+
+  FrameCache(long maxSize, @Nullable File spillDirectory) {
+    this.maxSize = maxSize;
+    this.spillDirectory = spillDirectory;
+  }
+
+  /**
+   * Keep an image made of {@code buffer}, unless it would exceed the budget. If {@code colorTable}
+   * is not null, {@code buffer} holds indices into it rather than ARGB pixels.
+   */
+  void add(int width, int height, int frameDelay, ByteBuffer buffer, @Nullable int[] colorTable,
+      Rect dirtyBounds) {
+    if (overflowed) return;
+    final Entry entry =
+        new Entry(width, height, frameDelay, buffer.duplicate(), colorTable, dirtyBounds);
+    entries.add(entry);
+
+    try {
+      if (spill != null) {
+        spillEntry(entries.size() - 1);
+        return;
+      }
+
+      size += buffer.capacity();
+      if (size <= maxSize) return;
+
+      if (spillDirectory != null) {
+        spill = FrameSpill.create(spillDirectory);
+        for (int i = 0; i < entries.size(); i++) {
+          spillEntry(i);
+        }
+        size = 0;
+        return;
+      }
+    } catch (IOException e) {
+      // Fall through and give up on caching.
+    }
+
+    overflowed = true;
+    entries.clear();
+    entries.trimToSize();
+    size = 0;
+    close();
+  }
+
+  private void spillEntry(int index) throws IOException {
+    final Entry entry = entries.get(index);
+    entry.spillOffset = spill.write(entry.buffer);
+    entry.buffer = null;
+  }
+
+  boolean isOverflowed() {
+    return overflowed;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /** Returns a new image with the same pixels as the image at {@code index}. */
+  Image get(int index) throws IOException {
+    final Entry entry = entries.get(index);
+    if (entry.buffer == null) {
+      // Map each spilled frame once and share the view between loops.
+      entry.buffer = spill.map(entry.spillOffset, entry.byteCount());
+    }
+    final ByteBuffer buffer = entry.buffer.duplicate();
+    buffer.clear();
+    if (entry.colorTable != null) {
+      return new IndexedImage(entry.width, entry.height, entry.frameDelay, buffer,
+          entry.colorTable, new Rect(entry.dirtyBounds));
+    }
+    return new BufferImage(entry.width, entry.height, entry.frameDelay, buffer,
+        new Rect(entry.dirtyBounds));
+  }
+
+  /** Delete the spill file, if any. Images already returned remain valid. */
+  @Override public void close() {
+    if (spill != null) {
+      spill.close();
+      spill = null;
+    }
+  }
+
+  private static final class Entry {
+    final int width;
+    final int height;
+    final int frameDelay;
+    @Nullable final int[] colorTable;
+    final Rect dirtyBounds;
+
+    /** The image's pixels, or null if spilled and not mapped yet. */
+    @Nullable ByteBuffer buffer;
+
+    /** Where the image's pixels start in the spill file, once spilled. */
+    long spillOffset;
+
+    Entry(int width, int height, int frameDelay, ByteBuffer buffer, @Nullable int[] colorTable,
+        Rect dirtyBounds) {
+      this.width = width;
+      this.height = height;
+      this.frameDelay = frameDelay;
+      this.buffer = buffer;
+      this.colorTable = colorTable;
+      this.dirtyBounds = new Rect(dirtyBounds);
+    }
+
+    int byteCount() {
+      return colorTable != null ? width * height : width * height * 4;
+    }
+  }
+}
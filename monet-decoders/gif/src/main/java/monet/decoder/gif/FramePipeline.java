@@ -0,0 +1,148 @@
+package monet.decoder.gif;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import javax.annotation.Nullable;
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * Decodes the LZW data of upcoming GIF frames on an {@link Executor} while earlier frames are
+ * composited.
+ * <p>
+ * The parser copies each frame's compressed data out of the source and {@linkplain
+ * #submit(GifSource.Frame, BufferedSource) submits} it, up to {@code depth} frames ahead. Frames
+ * are {@linkplain #take() taken} back in order, waiting for their decoding to finish, so that
+ * compositing still sees every frame in sequence. Each frame in flight owns its own decoder and
+ * index buffer, which are recycled once the frame after it is taken.
+ */
+final class FramePipeline {
+  private final Executor executor;
+  private final int depth;
+
+  private final ArrayDeque<Task> pending = new ArrayDeque<>();
+  private final ArrayDeque<Task> free = new ArrayDeque<>();
+  @Nullable private Task current;
+
+  // Set from another thread to stop take() from waiting.
+  private volatile boolean cancelled;
+  @Nullable private volatile FutureTask<Void> waiting;
+
+  FramePipeline(Executor executor, int depth) {
+    this.executor = executor;
+    this.depth = depth;
+  }
+
+  boolean isFull() {
+    return pending.size() >= depth;
+  }
+
+  boolean isEmpty() {
+    return pending.isEmpty();
+  }
+
+  /**
+   * Copy the image data of {@code frame}, from its LZW minimum code size up to and including the
+   * block terminator, out of {@code source} and start decoding it.
+   */
+  void submit(GifSource.Frame frame, BufferedSource source) throws IOException {
+    Task task = free.poll();
+    if (task == null) task = new Task();
+    task.frame = frame;
+    task.data.clear();
+
+    task.data.writeByte(source.readByte());
+    int size;
+    do {
+      size = source.readByte() & 0xff;
+      task.data.writeByte(size);
+      source.readFully(task.data, size);
+    } while (size != 0);
+
+    task.future = new FutureTask<>(task);
+    pending.add(task);
+    executor.execute(task.future);
+  }
+
+  /**
+   * Returns the oldest submitted frame once its index data is decoded, or null if none are
+   * pending. The frame's index data is only valid until the next call.
+   */
+  @Nullable GifSource.Frame take() throws IOException {
+    if (current != null) {
+      free.add(current);
+      current = null;
+    }
+
+    final Task task = pending.poll();
+    if (task == null) return null;
+
+    waiting = task.future;
+    try {
+      if (cancelled) throw new CancellationException();
+      task.future.get();
+    } catch (CancellationException e) {
+      clear();
+      throw new InterruptedIOException("closed");
+    } catch (InterruptedException e) {
+      clear();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while decoding frame");
+    } catch (ExecutionException e) {
+      clear();
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException(cause);
+    } finally {
+      waiting = null;
+    }
+
+    current = task;
+    task.frame.indexData = task.indexData;
+    return task.frame;
+  }
+
+  /**
+   * Stop a {@link #take()} in progress, or the next one, from another thread: rather than waiting
+   * for its frame to be decoded, it throws {@link InterruptedIOException}.
+   */
+  void cancel() {
+    cancelled = true;
+    final FutureTask<Void> future = waiting;
+    if (future != null) future.cancel(false);
+  }
+
+  /** Abandon all pending frames. Decoding which has already started runs to completion. */
+  void clear() {
+    for (Task task : pending) {
+      task.future.cancel(false);
+    }
+    // A cancelled task may still be running, so its buffers can't be reused.
+    pending.clear();
+  }
+
+  private static final class Task implements Callable<Void> {
+    final LzwDecoder lzw = new LzwDecoder();
+    final Buffer data = new Buffer();
+    byte[] indexData;
+    GifSource.Frame frame;
+    FutureTask<Void> future;
+
+    @Override public Void call() throws IOException {
+      final int count = frame.imageWidth * frame.imageHeight;
+      if (indexData == null || indexData.length < count) {
+        indexData = new byte[count];
+      }
+      lzw.read(data, indexData, count);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package monet.decoder.gif;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import okio.Buffer;
+
+import static monet.internal.Util.closeQuietly;
+
+/**
+ * A temporary file of raw frame pixels, written one after another at their own sizes, so that an
+ * indexed or delta frame takes no more room than it needs. Frames are read back as read-only
+ * memory-mapped views, which live in the page cache rather than on the Java heap.
+ */
+final class FrameSpill implements Closeable {
+  private final File file;
+  private final RandomAccessFile randomAccessFile;
+  private final FileOperator fileOperator;
+  private final Buffer buffer = new Buffer();
+  private long size;
+
+  private FrameSpill(File file, RandomAccessFile randomAccessFile) {
+    this.file = file;
+    this.randomAccessFile = randomAccessFile;
+    this.fileOperator = new FileOperator(randomAccessFile.getChannel());
+  }
+
+  /** Create a spill file in {@code directory}. */
+  static FrameSpill create(File directory) throws IOException {
+    final File file = File.createTempFile("monet-gif", ".frames", directory);
+    try {
+      return new FrameSpill(file, new RandomAccessFile(file, "rw"));
+    } catch (IOException e) {
+      file.delete();
+      throw e;
+    }
+  }
+
+  /** Append the remaining bytes of {@code pixels}, returning the offset to map them from. */
+  long write(ByteBuffer pixels) throws IOException {
+    final long offset = size;
+    size += pixels.remaining();
+    buffer.write(pixels.duplicate());
+    fileOperator.write(offset, buffer, buffer.size());
+    return offset;
+  }
+
+  /** Map the {@code byteCount} bytes written at {@code offset}. */
+  ByteBuffer map(long offset, int byteCount) throws IOException {
+    return randomAccessFile.getChannel()
+        .map(FileChannel.MapMode.READ_ONLY, offset, byteCount);
+  }
+
+  /** Close and delete the file. Views which are already mapped remain valid. */
+  @Override public void close() {
+    closeQuietly(randomAccessFile);
+    file.delete();
+  }
+}
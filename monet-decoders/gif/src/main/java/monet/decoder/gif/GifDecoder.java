@@ -1,9 +1,20 @@
 package monet.decoder.gif;
 
+import android.graphics.Rect;
+import android.view.View;
+import android.widget.ImageView;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import javax.annotation.Nullable;
 import monet.BufferImage;
 import monet.Decoder;
 import monet.Image;
+import monet.IndexedImage;
 import monet.Request;
 import monet.internal.Util;
 import okio.Buffer;
@@ -17,12 +28,43 @@ public class GifDecoder extends Decoder {
 
   private final ByteString SIGNATURE = ByteString.encodeUtf8("GIF");
 
+  private static final long DEFAULT_FRAME_CACHE_SIZE = 4 * 1024 * 1024;
+  private static final long DEFAULT_STRATEGY_PROBE_SIZE = 256 * 1024;
+
+  private final boolean deltaFrames;
+  @Nullable private final Executor pipelineExecutor;
+  private final int pipelineDepth;
+  private final boolean progressive;
+  @Nullable private final ForkJoinPool compositingPool;
+  private final boolean loop;
+  private final boolean indexedColor;
+  private final boolean collapseFrames;
+  private final long frameCacheSize;
+  @Nullable private final File frameSpillDirectory;
+  @Nullable private final File recordingDirectory;
+  @Nullable private final GifStrategy.Selector strategySelector;
+  @Nullable private final GifStrategy.Listener strategyListener;
+  private final long strategyProbeSize;
+
   public static Decoder create() {
-    return new GifDecoder();
+    return new Builder().build();
   }
 
-  private GifDecoder() {
-    // Prevent instantiation.
+  GifDecoder(Builder builder) {
+    this.deltaFrames = builder.deltaFrames;
+    this.pipelineExecutor = builder.pipelineExecutor;
+    this.pipelineDepth = builder.pipelineDepth;
+    this.progressive = builder.progressive;
+    this.compositingPool = builder.compositingPool;
+    this.loop = builder.loop;
+    this.indexedColor = builder.indexedColor;
+    this.collapseFrames = builder.collapseFrames;
+    this.frameCacheSize = builder.frameCacheSize;
+    this.frameSpillDirectory = builder.frameSpillDirectory;
+    this.recordingDirectory = builder.recordingDirectory;
+    this.strategySelector = builder.strategySelector;
+    this.strategyListener = builder.strategyListener;
+    this.strategyProbeSize = builder.strategyProbeSize;
   }
 
   @Override public boolean supports(Request request) {
@@ -39,64 +81,654 @@ public class GifDecoder extends Decoder {
     return bytes.equals(SIGNATURE);
   }
 
+  /**
+   * Index {@code request}'s GIF without decoding it, to plan its layout and playback. The request
+   * can still be decoded afterwards. See {@link GifSource#probe(BufferedSource)}.
+   */
+  public GifIndex probe(Request request) throws IOException {
+    return GifSource.probe(request.source());
+  }
+
   @Override public Publisher<? extends Image> publisher(final Request request) {
-    return s -> {
-      final GifSource gifSource = new GifSource(request.source());
+    return publisher(request, NO_SEEK);
+  }
+
+  /**
+   * Decode {@code request} starting from frame number {@code frame}, counting from zero. Frames
+   * before it are still decoded, but are not emitted.
+   */
+  public Publisher<? extends Image> seekToFrame(final Request request, final int frame) {
+    return publisher(request, gifSource -> gifSource.seekToFrame(frame));
+  }
+
+  /**
+   * Decode {@code request} starting from the frame displayed {@code time} milliseconds into the
+   * animation. Frames before it are still decoded, but are not emitted.
+   */
+  public Publisher<? extends Image> seekToTime(final Request request, final long time) {
+    return publisher(request, gifSource -> gifSource.seekToTime(time));
+  }
+
+  /**
+   * Decode one GIF at the size of each request. Frames are decoded and composited once, at the
+   * smallest sample size any request needs, and each other size is sampled from the composited
+   * frame. Sizes whose sample size is a multiple of the smallest come out exactly as decoding them
+   * alone would; others take the nearest composited pixel. Looping, caching and the other settings
+   * apply as they would to the request needing the smallest sample size.
+   */
+  @Override public Publisher<? extends List<Image>> publisher(final List<Request> requests) {
+    return (Publisher<List<Image>>) s -> {
+      final BufferedSource source = requests.get(0).source();
       final GifSource.Header header;
       try {
-        header = gifSource.readHeader();
+        header = new GifSource(source.peek()).readHeader();
       } catch (Exception e) {
         s.onError(e);
-        Util.closeQuietly(gifSource);
+        Util.closeQuietly(source);
         return;
       }
-      s.onSubscribe(new GifSubscription(s, header, gifSource));
+
+      final int[] sampleSizes = new int[requests.size()];
+      int base = 0;
+      for (int i = 0; i < sampleSizes.length; i++) {
+        sampleSizes[i] = sampleSize(requests.get(i), header.width, header.height);
+        if (sampleSizes[i] < sampleSizes[base]) base = i;
+      }
+      final Resampler resampler = new Resampler(s, header, sampleSizes);
+      subscribe(requests.get(base), NO_SEEK, resampler, resampler);
     };
   }
 
+  private Publisher<? extends Image> publisher(final Request request, final Seek seek) {
+    return s -> subscribe(request, seek, s, null);
+  }
+
+  /**
+   * Decode {@code request} for {@code s}, telling {@code resampler} the sample size once the
+   * header has been read.
+   */
+  private void subscribe(Request request, Seek seek, Subscriber<? super Image> s,
+      @Nullable Resampler resampler) {
+    Recording recording = null;
+    BufferedSource source = request.source();
+    final GifStrategy strategy;
+    GifSource gifSource = null;
+    try {
+      // A poster is a single frame, so there is nothing to plan for.
+      strategy = request.poster() ? null : strategy(request);
+      final GifStrategy.Mode mode = strategy != null ? strategy.mode() : null;
+
+      // Later loops are decoded again from a recording of the compressed data.
+      if (loop && !request.poster()
+          && (mode != GifStrategy.Mode.STREAM || recordingDirectory != null)) {
+        recording = recordingDirectory != null
+            ? Recording.inDirectory(source, recordingDirectory)
+            : Recording.inMemory(source);
+        source = recording.source();
+      }
+      gifSource = open(source, request, strategy != null ? strategy.sampleSize() : 1);
+      if (resampler != null) resampler.setSampleSize(gifSource.sampleSize());
+      seek.seek(gifSource);
+    } catch (Exception e) {
+      s.onError(e);
+      Util.closeQuietly(gifSource);
+      Util.closeQuietly(source);
+      Util.closeQuietly(recording);
+      return;
+    }
+
+    // A loop can only be replayed from the cache if its first pass started at the beginning.
+    FrameCache cache = null;
+    if (recording != null && seek == NO_SEEK) {
+      if (strategy == null) {
+        if (frameCacheSize > 0 || frameSpillDirectory != null) {
+          cache = new FrameCache(frameCacheSize, frameSpillDirectory);
+        }
+      } else if (strategy.mode() == GifStrategy.Mode.CACHE_ALL) {
+        cache = new FrameCache(Long.MAX_VALUE, null);
+      }
+    }
+    s.onSubscribe(new GifSubscription(this, request, s, gifSource, recording, cache,
+        strategy != null ? strategy.sampleSize() : 1));
+  }
+
+  /** Probe {@code request} and choose its strategy, or return null if there is no selector. */
+  @Nullable private GifStrategy strategy(Request request) throws IOException {
+    if (strategySelector == null) return null;
+    // Data which has already arrived costs nothing to look at, but waiting for more holds up the
+    // first frame.
+    final BufferedSource source = request.source();
+    final GifIndex index =
+        GifSource.probe(source, Math.max(strategyProbeSize, source.getBuffer().size()));
+    final GifSource.Header header = index.header();
+    final GifStrategy strategy =
+        strategySelector.select(index, sampleSize(request, header.width, header.height));
+    if (strategyListener != null) strategyListener.onStrategy(index, strategy);
+    return strategy;
+  }
+
+  /**
+   * Open a GIF source positioned after the header, with this decoder's settings and a sample size
+   * of at least {@code minSampleSize}.
+   */
+  GifSource open(BufferedSource source, Request request, int minSampleSize) throws IOException {
+    final GifSource gifSource = new GifSource(source);
+    final GifSource.Header header = gifSource.readHeader();
+    gifSource.setSampleSize(
+        Math.max(sampleSize(request, header.width, header.height), minSampleSize));
+    // Neither decoding ahead nor provisional frames help when only the first frame is wanted.
+    if (pipelineExecutor != null && !request.poster()) {
+      gifSource.setPipeline(pipelineExecutor, pipelineDepth);
+    }
+    gifSource.setProgressive(progressive && !request.poster());
+    gifSource.setCompositingPool(compositingPool);
+    return gifSource;
+  }
+
+  /**
+   * Choose a sample size for {@code request} in the same way as a bitmap decoder's {@code
+   * inSampleSize}. Sizes are taken from the request's target size, or failing that the size of its
+   * {@linkplain Request#fitView() view}.
+   */
+  static int sampleSize(Request request, int width, int height) {
+    int reqWidth = request.targetWidth();
+    int reqHeight = request.targetHeight();
+    final View fitView = request.fitView();
+    if (!request.hasTargetSize() && fitView != null) {
+      reqWidth = fitView.getWidth();
+      reqHeight = fitView.getHeight();
+    }
+    if (reqWidth <= 0 && reqHeight <= 0) return 1;
+
+    final int sampleSize;
+    if (reqHeight <= 0) {
+      sampleSize = width / reqWidth;
+    } else if (reqWidth <= 0) {
+      sampleSize = height / reqHeight;
+    } else {
+      final int widthRatio = width / reqWidth;
+      final int heightRatio = height / reqHeight;
+      ImageView.ScaleType scale = request.scale();
+      if (scale == null && fitView instanceof ImageView) {
+        scale = ((ImageView) fitView).getScaleType();
+      }
+      if (scale == ImageView.ScaleType.CENTER_INSIDE) {
+        sampleSize = Math.max(widthRatio, heightRatio);
+      } else {
+        sampleSize = Math.min(widthRatio, heightRatio);
+      }
+    }
+    return Math.max(sampleSize, 1);
+  }
+
+  private interface Seek {
+    void seek(GifSource source) throws IOException;
+  }
+
+  private static final Seek NO_SEEK = gifSource -> { };
+
+  public static final class Builder {
+    boolean deltaFrames;
+    Executor pipelineExecutor;
+    int pipelineDepth;
+    boolean progressive;
+    ForkJoinPool compositingPool;
+    boolean loop;
+    boolean indexedColor;
+    boolean collapseFrames;
+    long frameCacheSize = DEFAULT_FRAME_CACHE_SIZE;
+    File frameSpillDirectory;
+    File recordingDirectory;
+    GifStrategy.Selector strategySelector;
+    GifStrategy.Listener strategyListener;
+    long strategyProbeSize = DEFAULT_STRATEGY_PROBE_SIZE;
+
+    /**
+     * Emit only the region of each frame which changed since the previous frame. The first frame
+     * is always emitted whole. See {@link Image#dirtyBounds()}.
+     */
+    public Builder deltaFrames(boolean deltaFrames) {
+      this.deltaFrames = deltaFrames;
+      return this;
+    }
+
+    /**
+     * Decompress up to {@code depth} upcoming frames in parallel on {@code executor}, ahead of the
+     * frame being composited. Worthwhile when whole animations are decoded up front on a device
+     * with several cores. See {@link GifSource#setPipeline(Executor, int)}.
+     */
+    public Builder pipeline(Executor executor, int depth) {
+      if (executor == null) throw new NullPointerException("executor == null");
+      if (depth < 1) throw new IllegalArgumentException("depth < 1: " + depth);
+      this.pipelineExecutor = executor;
+      this.pipelineDepth = depth;
+      return this;
+    }
+
+    /**
+     * Emit interlaced frames progressively: a provisional image with no delay after each of the
+     * first three interlace passes, then the complete frame. Useful on slow connections, where the
+     * first pass arrives after an eighth of the frame's data.
+     */
+    public Builder progressive(boolean progressive) {
+      this.progressive = progressive;
+      return this;
+    }
+
+    /**
+     * Composite frames of a megapixel or more in bands of rows on {@code pool}, so that very large
+     * animations keep up with their frame delays on a device with several cores. See {@link
+     * GifSource#setCompositingPool(ForkJoinPool)}.
+     */
+    public Builder compositingPool(ForkJoinPool pool) {
+      if (pool == null) throw new NullPointerException("pool == null");
+      this.compositingPool = pool;
+      return this;
+    }
+
+    /**
+     * Emit frames with at most 256 colors as {@link IndexedImage}s, one byte per pixel plus a
+     * shared color table, instead of four bytes per pixel. Frames are expanded to ARGB only when
+     * their pixels, buffer or bitmap are asked for, so frames which are kept, such as those in the
+     * {@linkplain #frameCacheSize(long) frame cache}, take a quarter of the memory. Frames with
+     * more colors, which a GIF can only produce by compositing several color tables, are still
+     * emitted as ARGB.
+     */
+    public Builder indexedColor(boolean indexedColor) {
+      this.indexedColor = indexedColor;
+      return this;
+    }
+
+    /**
+     * Merge frames which change nothing visible, such as those which only extend a delay, into the
+     * delay of the frame before them instead of emitting them. Each frame is then emitted once the
+     * next one has been decoded, since only then is its delay known.
+     */
+    public Builder collapseFrames(boolean collapseFrames) {
+      this.collapseFrames = collapseFrames;
+      return this;
+    }
+
+    /**
+     * Play animations as many times as their Netscape extension asks, or forever if it says so,
+     * instead of completing after the first pass. GIFs without a Netscape extension play once.
+     * See {@link #frameCacheSize(long)}.
+     */
+    public Builder loop(boolean loop) {
+      this.loop = loop;
+      return this;
+    }
+
+    /**
+     * The most memory, in bytes, that a looping animation may use to keep its emitted images after
+     * the first pass, so that later loops replay them instead of decoding again. Animations which
+     * don't fit are decoded again on every loop from an in-memory copy of their compressed data,
+     * unless a {@linkplain #frameSpillDirectory(File) spill directory} is set. Defaults to 4 MiB;
+     * zero keeps no frames in memory.
+     */
+    public Builder frameCacheSize(long bytes) {
+      if (bytes < 0) throw new IllegalArgumentException("bytes < 0: " + bytes);
+      this.frameCacheSize = bytes;
+      return this;
+    }
+
+    /**
+     * Write the frames of looping animations which don't fit in the {@linkplain
+     * #frameCacheSize(long) frame cache} to a temporary file in {@code directory}, and replay later
+     * loops from read-only memory-mapped views of it. This keeps heap usage flat for long
+     * animations, at the cost of disk space for the raw pixels of every frame. The file is deleted
+     * when the animation completes or is cancelled.
+     */
+    public Builder frameSpillDirectory(@Nullable File directory) {
+      this.frameSpillDirectory = directory;
+      return this;
+    }
+
+    /**
+     * Record the compressed data of looping animations to a temporary file in {@code directory}
+     * rather than in memory, for animations which are decoded again on every loop. The request's
+     * source is read to the end and closed when the first loop ends, and later loops read the
+     * file, so a large animation from the network loops holding only the frame being decoded. The
+     * file is deleted when the animation completes or is cancelled.
+     */
+    public Builder recordingDirectory(@Nullable File directory) {
+      this.recordingDirectory = directory;
+      return this;
+    }
+
+    /**
+     * Choose how to play each animation with {@code selector}, such as {@link
+     * GifStrategy#forBudget(long)}, rather than from this builder's frame cache settings. The
+     * selector sees a {@linkplain GifSource#probe(BufferedSource, long) probe} of the start of the
+     * GIF, up to the {@linkplain #strategyProbeSize(long) probe size} or as much as has already
+     * arrived, whichever is more.
+     */
+    public Builder strategySelector(@Nullable GifStrategy.Selector selector) {
+      this.strategySelector = selector;
+      return this;
+    }
+
+    /** Report the strategy chosen for each animation to {@code listener}. */
+    public Builder strategyListener(@Nullable GifStrategy.Listener listener) {
+      this.strategyListener = listener;
+      return this;
+    }
+
+    /**
+     * The most bytes of compressed data to wait for when probing an animation to choose its
+     * {@linkplain #strategySelector(GifStrategy.Selector) strategy}. GIFs which are longer, or
+     * which are still downloading, give the selector an index which is not complete. Defaults to
+     * 256 KiB.
+     */
+    public Builder strategyProbeSize(long bytes) {
+      if (bytes < 0) throw new IllegalArgumentException("bytes < 0: " + bytes);
+      this.strategyProbeSize = bytes;
+      return this;
+    }
+
+    public GifDecoder build() {
+      return new GifDecoder(this);
+    }
+  }
+
   static class GifSubscription implements Subscription {
 
+    private final GifDecoder decoder;
+    private final Request request;
     private final Subscriber<? super Image> subscriber;
     private final GifSource.Header header;
-    private final GifSource source;
 
+    @Nullable private volatile GifSource source;
+    @Nullable private Recording recording;
+    @Nullable private FrameCache cache;
+    @Nullable private final Palette palette;
+    private final int sampleSize;
+    private int loops;
+    private int frames;
+    private int replayed;
+
+    // Collapsing unchanged frames.
+    @Nullable private Pending held;
+    @Nullable private GifSource.Frame deferred;
+    @Nullable private int[] shown;
+
+    // Cancellation. Cancelling from another thread while a frame is being decoded only closes the
+    // source, and the requesting thread releases everything else once it stops. Guarded by this.
     private volatile boolean isCancelled;
+    private int busy;
 
-    GifSubscription(Subscriber<? super Image> subscriber, GifSource.Header header,
-        GifSource source) {
+    GifSubscription(GifDecoder decoder, Request request, Subscriber<? super Image> subscriber,
+        GifSource source, @Nullable Recording recording, @Nullable FrameCache cache,
+        int sampleSize) {
+      this.decoder = decoder;
+      this.request = request;
       this.subscriber = subscriber;
-      this.header = header;
+      this.header = source.header();
       this.source = source;
+      this.recording = recording;
+      this.cache = cache;
+      this.palette = decoder.indexedColor ? new Palette() : null;
+      this.sampleSize = sampleSize;
     }
 
     @Override public void request(long n) {
-      if (isCancelled) return;
+      synchronized (this) {
+        if (isCancelled) return;
+        busy++;
+      }
 
       try {
         for (int i = 0; i < n; i++) {
           if (isCancelled) return;
 
-          final GifSource.Frame frame = source.readFrame();
-          if (frame == null) {
+          final Image image = next();
+          if (image == null) {
             subscriber.onComplete();
             cancel();
             return;
           }
 
-          subscriber.onNext(
-              new BufferImage(header.width, header.height, frame.delayTime,
-                  frame.pixelData.asByteBuffer()));
+          subscriber.onNext(image);
         }
       } catch (Exception e) {
+        // Decoding stops with an exception when cancelled from another thread.
+        if (isCancelled) return;
         cancel();
         subscriber.onError(e);
+      } finally {
+        final boolean dispose;
+        synchronized (this) {
+          dispose = --busy == 0 && isCancelled;
+        }
+        if (dispose) dispose();
+      }
+    }
+
+    @Nullable private Image next() throws IOException {
+      while (true) {
+        if (source == null) {
+          // The poster has been emitted.
+          if (cache == null) return null;
+          // Every frame fit in the cache.
+          if (replayed < cache.size()) return cache.get(replayed++);
+          if (!nextLoop()) return null;
+          replayed = 0;
+          continue;
+        }
+
+        if (deferred != null) {
+          final GifSource.Frame frame = deferred;
+          deferred = null;
+          return emit(capture(frame));
+        }
+
+        final GifSource.Frame frame = source.readFrame();
+        if (frame != null) {
+          if (!frame.isProvisional()) frames++;
+          if (request.poster()) {
+            // Stop reading as soon as the first frame is composited.
+            final Pending poster = capture(frame);
+            Util.closeQuietly(source);
+            source = null;
+            return emit(poster);
+          }
+          if (!decoder.collapseFrames) return emit(capture(frame));
+
+          // Hold each frame back until the next one shows whether it stays on screen for longer.
+          if (frame.isProvisional()) {
+            if (held == null) return emit(capture(frame));
+            deferred = frame;
+            return release();
+          }
+          final boolean unchanged = isUnchanged(frame);
+          if (held != null && unchanged) {
+            held.delay += frame.delayTime;
+            continue;
+          }
+          final Pending previous = held;
+          held = capture(frame);
+          if (previous != null) return emit(previous);
+          continue;
+        }
+
+        if (held != null) return release();
+
+        // Streamed animations without a recording play once.
+        if (recording == null || !nextLoop()) return null;
+        if (cache != null && !cache.isOverflowed()) {
+          Util.closeQuietly(source);
+          source = null;
+          recording.close();
+          recording = null;
+          replayed = 0;
+        } else {
+          if (cache != null) cache.close();
+          cache = null;
+          // Open the replay before closing the previous source, which may share its file.
+          final BufferedSource replay = recording.replay();
+          Util.closeQuietly(source);
+          source = decoder.open(replay, request, sampleSize);
+        }
       }
     }
 
+    /** Returns true if the animation should play again, counting the loop. */
+    private boolean nextLoop() {
+      // Nothing to loop over if the GIF has no frames.
+      if (!decoder.loop || frames == 0) return false;
+      final int repeatCount = header.repeatCount();
+      if (repeatCount != GifSource.Header.REPEAT_FOREVER && loops >= repeatCount) return false;
+      loops++;
+      return true;
+    }
+
+    /**
+     * Returns true if {@code frame} looks the same as the last frame which changed anything.
+     * Otherwise remembers how it looks, for comparing with the next frame.
+     */
+    private boolean isUnchanged(GifSource.Frame frame) {
+      final int[] pixels = frame.pixels();
+      if (shown == null || shown.length != pixels.length) {
+        shown = pixels.clone();
+        return false;
+      }
+
+      // Only the dirty region can differ.
+      final int stride = frame.canvasWidth();
+      final int left = frame.dirtyLeft();
+      final int right = frame.dirtyRight();
+      for (int y = frame.dirtyTop(); y < frame.dirtyBottom(); y++) {
+        final int row = y * stride;
+        for (int i = row + left; i < row + right; i++) {
+          if (pixels[i] != shown[i]) {
+            for (int copy = y; copy < frame.dirtyBottom(); copy++) {
+              final int pos = copy * stride + left;
+              System.arraycopy(pixels, pos, shown, pos, right - left);
+            }
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    private Image release() {
+      final Pending pending = held;
+      held = null;
+      return emit(pending);
+    }
+
+    private Image emit(Pending pending) {
+      if (cache != null && !pending.provisional) {
+        cache.add(pending.width, pending.height, pending.delay, pending.buffer,
+            pending.colorTable, pending.dirty);
+      }
+      if (pending.colorTable != null) {
+        return new IndexedImage(pending.width, pending.height, pending.delay, pending.buffer,
+            pending.colorTable, pending.dirty);
+      }
+      return new BufferImage(pending.width, pending.height, pending.delay, pending.buffer,
+          pending.dirty);
+    }
+
+    /** Copy the reused canvas so the emitted image outlives the next frame. */
+    private Pending capture(GifSource.Frame frame) {
+      // Provisional frames are replaced as soon as the rest of the frame arrives.
+      final int delay = frame.isProvisional() ? 0 : frame.delayTime;
+      final Rect dirty =
+          new Rect(frame.dirtyLeft(), frame.dirtyTop(), frame.dirtyRight(), frame.dirtyBottom());
+      final int[] pixels = frame.pixels();
+      final int stride = frame.canvasWidth();
+
+      final int width;
+      final int height;
+      final int offset;
+      if (!decoder.deltaFrames) {
+        width = stride;
+        height = frame.canvasHeight();
+        offset = 0;
+      } else {
+        // A frame may change nothing, yet its delay must still be shown. Emit one unchanged pixel
+        // rather than an image with no pixels at all.
+        if (dirty.isEmpty()) dirty.set(0, 0, 1, 1);
+        width = dirty.width();
+        height = dirty.height();
+        offset = dirty.top * stride + dirty.left;
+      }
+
+      if (palette != null) {
+        final ByteBuffer indices = palette.index(pixels, offset, stride, width, height);
+        if (indices != null) {
+          return new Pending(width, height, delay, indices, palette.colorTable(), dirty,
+              frame.isProvisional());
+        }
+        // Too many colors; fall back to ARGB for this frame.
+      }
+
+      final ByteBuffer buffer = ByteBuffer.allocate(width * height * 4);
+      if (width == stride) {
+        buffer.asIntBuffer().put(pixels, offset, width * height);
+      } else {
+        final IntBuffer ints = buffer.asIntBuffer();
+        for (int y = 0; y < height; y++) {
+          ints.put(pixels, offset + y * stride, width);
+        }
+      }
+
+      return new Pending(width, height, delay, buffer, null, dirty, frame.isProvisional());
+    }
+
     @Override public void cancel() {
-      if (isCancelled) return;
-      isCancelled = true;
+      final boolean dispose;
+      synchronized (this) {
+        if (isCancelled) return;
+        isCancelled = true;
+        dispose = busy == 0;
+      }
+      if (dispose) {
+        dispose();
+      } else {
+        // Stop the frame being decoded. The requesting thread disposes of the rest.
+        Util.closeQuietly(source);
+      }
+    }
+
+    private void dispose() {
       Util.closeQuietly(source);
+      source = null;
+      if (recording != null) {
+        recording.close();
+        recording = null;
+      }
+      if (cache != null) {
+        cache.close();
+        cache = null;
+      }
+      held = null;
+      deferred = null;
+      shown = null;
+    }
+  }
+
+  /** A copy of a frame, waiting to be emitted as an image. */
+  private static final class Pending {
+    final int width;
+    final int height;
+    final ByteBuffer buffer;
+    @Nullable final int[] colorTable;
+    final Rect dirty;
+    final boolean provisional;
+    int delay;
+
+    Pending(int width, int height, int delay, ByteBuffer buffer, @Nullable int[] colorTable,
+        Rect dirty, boolean provisional) {
+      this.width = width;
+      this.height = height;
+      this.delay = delay;
+      this.buffer = buffer;
+      this.colorTable = colorTable;
+      this.dirty = dirty;
+      this.provisional = provisional;
     }
   }
 }
@@ -0,0 +1,161 @@
+package monet.decoder.gif;
+
+import android.graphics.Rect;
+import java.util.Arrays;
+
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_UNKNOWN;
+
+/**
+ * The byte offset, timing, disposal method and bounds of every frame in a GIF, built by a fast
+ * pass over the data which skips the compressed image data of each frame.
+ * <p>
+ * An index of data which ended early, such as a {@linkplain GifSource#probe(okio.BufferedSource)
+ * probe} of a download in progress, covers the frames seen so far and is not {@linkplain
+ * #isComplete() complete}.
+ */
+public final class GifIndex {
+  private final GifSource.Header header;
+  private boolean complete;
+  private long byteCount;
+  private int frameCount;
+  private long duration;
+  private long[] offsets = new long[16];
+  private long[] startTimes = new long[16];
+  private int[] delayTimes = new int[16];
+  private int[] disposalMethods = new int[16];
+  // Left, top, right and bottom of each frame.
+  private int[] bounds = new int[16 * 4];
+
+  GifIndex(GifSource.Header header) {
+    this.header = header;
+  }
+
+  void add(long offset, GifSource.Frame frame) {
+    if (frameCount == offsets.length) {
+      final int size = frameCount * 2;
+      offsets = Arrays.copyOf(offsets, size);
+      startTimes = Arrays.copyOf(startTimes, size);
+      delayTimes = Arrays.copyOf(delayTimes, size);
+      disposalMethods = Arrays.copyOf(disposalMethods, size);
+      bounds = Arrays.copyOf(bounds, size * 4);
+    }
+    offsets[frameCount] = offset;
+    startTimes[frameCount] = duration;
+    delayTimes[frameCount] = frame.delayTime;
+    disposalMethods[frameCount] = frame.disposalMethod;
+    final int i = frameCount * 4;
+    bounds[i] = frame.imageLeftPosition;
+    bounds[i + 1] = frame.imageTopPosition;
+    bounds[i + 2] = frame.imageLeftPosition + frame.imageWidth;
+    bounds[i + 3] = frame.imageTopPosition + frame.imageHeight;
+    duration += frame.delayTime;
+    frameCount++;
+  }
+
+  void setComplete() {
+    complete = true;
+  }
+
+  void setByteCount(long byteCount) {
+    this.byteCount = byteCount;
+  }
+
+  public GifSource.Header header() {
+    return header;
+  }
+
+  /** True if the index reached the GIF trailer, rather than the data ending first. */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /** The size of the data indexed, in bytes, up to the trailer or the end of the data. */
+  public long byteCount() {
+    return byteCount;
+  }
+
+  public int frameCount() {
+    return frameCount;
+  }
+
+  /** The total duration of a single loop of the animation, in milliseconds. */
+  public long duration() {
+    return duration;
+  }
+
+  /** The byte offset of the first block of {@code frame}. */
+  public long offset(int frame) {
+    checkFrame(frame);
+    return offsets[frame];
+  }
+
+  /** The time at which {@code frame} is first displayed, in milliseconds. */
+  public long startTime(int frame) {
+    checkFrame(frame);
+    return startTimes[frame];
+  }
+
+  public int delayTime(int frame) {
+    checkFrame(frame);
+    return delayTimes[frame];
+  }
+
+  public int disposalMethod(int frame) {
+    checkFrame(frame);
+    return disposalMethods[frame];
+  }
+
+  /** The region of the canvas which {@code frame}'s image data covers. */
+  public Rect bounds(int frame) {
+    checkFrame(frame);
+    final int i = frame * 4;
+    return new Rect(bounds[i], bounds[i + 1], bounds[i + 2], bounds[i + 3]);
+  }
+
+  /**
+   * An estimate of the memory, in bytes, needed to keep every frame seen so far decoded to ARGB
+   * at {@code sampleSize}, as for a looping animation's frame cache.
+   */
+  public long decodedByteCount(int sampleSize) {
+    if (sampleSize < 1) throw new IllegalArgumentException("sampleSize < 1: " + sampleSize);
+    final long width = (header.width + sampleSize - 1) / sampleSize;
+    final long height = (header.height + sampleSize - 1) / sampleSize;
+    return frameCount * width * height * 4;
+  }
+
+  /**
+   * Returns the frame displayed at {@code time} milliseconds into the animation. Times beyond the
+   * end of the animation wrap around, as when looping.
+   */
+  public int frameAt(long time) {
+    if (frameCount == 0) throw new IllegalStateException("no frames");
+    if (time < 0) throw new IllegalArgumentException("time < 0: " + time);
+    if (duration > 0) time %= duration;
+
+    int index = Arrays.binarySearch(startTimes, 0, frameCount, time);
+    if (index < 0) index = -index - 2;
+
+    // Skip over zero-length frames which start at the same time.
+    while (index + 1 < frameCount && startTimes[index + 1] == time) index++;
+    return index;
+  }
+
+  /**
+   * Returns the last frame at or before {@code frame} which can be composited without decoding
+   * any earlier frame.
+   */
+  int independentFrame(int frame) {
+    checkFrame(frame);
+    for (int i = frame; i > 0; i--) {
+      // These frames start from a clear canvas and become the restore point themselves.
+      if (disposalMethods[i] == DISPOSAL_METHOD_UNKNOWN) return i;
+    }
+    return 0;
+  }
+
+  private void checkFrame(int frame) {
+    if (frame < 0 || frame >= frameCount) {
+      throw new IndexOutOfBoundsException("frame " + frame + " of " + frameCount);
+    }
+  }
+}
@@ -0,0 +1,222 @@
+package monet.decoder.gif;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import okio.Buffer;
+
+/**
+ * A push-mode GIF parser, for data which arrives piecemeal from a non-blocking source.
+ * <p>
+ * Bytes are handed to the parser as they arrive with {@link #feed(Buffer)} or {@link
+ * #feed(ByteBuffer)}, and the parser reports the header and each complete frame to its {@link
+ * Callback}. It never waits for more data: a block which is not complete yet stays buffered until
+ * the rest of it is fed. Image data is decompressed a sub-block at a time as it arrives, so only
+ * the current sub-block is ever held back. In {@linkplain #setProgressive(boolean) progressive}
+ * mode, interlaced frames are also previewed as each interlace pass arrives.
+ */
+public final class GifParser {
+
+  // Parser states.
+  private static final int STATE_HEADER = 0;
+  private static final int STATE_BLOCK = 1;
+  private static final int STATE_IMAGE_START = 2;
+  private static final int STATE_IMAGE_DATA = 3;
+  private static final int STATE_DONE = 4;
+
+  // Enough to see whether a Netscape extension follows the header.
+  private static final int HEADER_LOOKAHEAD = 19;
+
+  private final Callback callback;
+  private final Buffer buffer = new Buffer();
+  private final GifSource source = new GifSource(buffer);
+  private final LzwDecoder lzw = new LzwDecoder();
+  private final byte[] block = new byte[255];
+
+  private int state = STATE_HEADER;
+  private boolean finished;
+  private boolean progressive;
+  private GifSource.Frame frame;
+  private byte[] indexData;
+
+  public GifParser(Callback callback) {
+    this.callback = callback;
+  }
+
+  /** @see GifSource#setSampleSize(int) */
+  public void setSampleSize(int sampleSize) {
+    source.setSampleSize(sampleSize);
+  }
+
+  /**
+   * Report each interlaced frame to {@link Callback#onProvisionalFrame} after each of its first
+   * three interlace passes arrives, with missing rows filled from the row above.
+   */
+  public void setProgressive(boolean progressive) {
+    this.progressive = progressive;
+  }
+
+  /** Parse as much as possible of the GIF after appending all remaining bytes in {@code bytes}. */
+  public void feed(ByteBuffer bytes) throws IOException {
+    checkNotFinished();
+    buffer.write(bytes);
+    parse();
+  }
+
+  /** Parse as much as possible of the GIF after moving all bytes out of {@code bytes}. */
+  public void feed(Buffer bytes) throws IOException {
+    checkNotFinished();
+    buffer.write(bytes, bytes.size());
+    parse();
+  }
+
+  /**
+   * Signal that no more data will arrive.
+   *
+   * @throws EOFException if the data ended before the GIF trailer.
+   */
+  public void finish() throws IOException {
+    if (finished) return;
+    finished = true;
+    parse();
+    if (state != STATE_DONE) {
+      state = STATE_DONE;
+      throw new EOFException("GIF data ended before the trailer");
+    }
+  }
+
+  private void checkNotFinished() {
+    if (finished) throw new IllegalStateException("finished");
+  }
+
+  private void parse() throws IOException {
+    while (true) {
+      switch (state) {
+        case STATE_HEADER: {
+          final long length = headerLength();
+          if (length < 0 || (buffer.size() < length + HEADER_LOOKAHEAD && !finished)) return;
+          callback.onHeader(source.readHeader());
+          state = STATE_BLOCK;
+          break;
+        }
+
+        case STATE_BLOCK: {
+          if (blockLength() < 0) return;
+          final boolean imageDescriptor = buffer.getByte(0) == 0x2c;
+          if (frame == null) frame = new GifSource.Frame();
+          if (!source.readFrameBlock(frame, true)) {
+            state = STATE_DONE;
+            callback.onComplete();
+            return;
+          }
+          if (imageDescriptor) state = STATE_IMAGE_START;
+          break;
+        }
+
+        case STATE_IMAGE_START: {
+          if (buffer.size() < 1) return;
+          final int count = frame.imageWidth * frame.imageHeight;
+          if (indexData == null || indexData.length < count) {
+            indexData = new byte[count];
+          }
+          lzw.start(buffer.readByte() & 0xff, indexData, count);
+          state = STATE_IMAGE_DATA;
+          break;
+        }
+
+        case STATE_IMAGE_DATA: {
+          if (buffer.size() < 1) return;
+          final int size = buffer.getByte(0) & 0xff;
+          if (buffer.size() < size + 1) return;
+          buffer.skip(1);
+
+          if (size == 0) {
+            lzw.finish();
+            source.readFrameImageData(frame, indexData);
+            final GifSource.Frame complete = frame;
+            frame = null;
+            state = STATE_BLOCK;
+            callback.onFrame(complete);
+            break;
+          }
+
+          for (int offset = 0; offset < size; ) {
+            offset += buffer.read(block, offset, size - offset);
+          }
+          lzw.decode(block, 0, size);
+
+          if (progressive && frame.interlaceFlag) {
+            final int passes = Compositor.interlacePasses(frame, lzw.position());
+            if (passes > frame.passes && passes < 4) {
+              source.previewFrameImageData(frame, indexData, passes);
+              callback.onProvisionalFrame(frame);
+            }
+          }
+          break;
+        }
+
+        default:
+          // Ignore anything after the trailer.
+          buffer.clear();
+          return;
+      }
+    }
+  }
+
+  /** Returns the length of the header and global color table, or -1 if not yet known. */
+  private long headerLength() {
+    if (buffer.size() < 13) return -1;
+    final int packed = buffer.getByte(10) & 0xff;
+    return (packed & 0x80) != 0 ? 13 + 3 * (2 << (packed & 0x07)) : 13;
+  }
+
+  /** Returns the length of the next block if it has arrived in full, or -1 if not. */
+  private long blockLength() {
+    final long size = buffer.size();
+    if (size < 1) return -1;
+    switch (buffer.getByte(0) & 0xff) {
+      case 0x21: {
+        // Extension label, then sub-blocks up to a terminator.
+        long pos = 2;
+        while (pos < size) {
+          final int length = buffer.getByte(pos) & 0xff;
+          pos += length + 1;
+          if (length == 0) return pos <= size ? pos : -1;
+        }
+        return -1;
+      }
+
+      case 0x2c: {
+        if (size < 10) return -1;
+        final int packed = buffer.getByte(9) & 0xff;
+        final long length = (packed & 0x80) != 0 ? 10 + 3 * (2 << (packed & 0x07)) : 10;
+        return size >= length ? length : -1;
+      }
+
+      default:
+        return 1;
+    }
+  }
+
+  /** Receives the parts of a GIF as soon as they are complete. */
+  public interface Callback {
+
+    void onHeader(GifSource.Header header);
+
+    /**
+     * Called with each composited frame. The frame's {@linkplain GifSource.Frame#pixels() pixels}
+     * are only valid until this method returns.
+     */
+    void onFrame(GifSource.Frame frame);
+
+    /**
+     * Called in {@linkplain GifParser#setProgressive(boolean) progressive} mode with a preview of an
+     * interlaced frame whose data has partly arrived. Its pixels are only valid until this method
+     * returns, and the same frame is passed to {@link #onFrame} once complete.
+     */
+    void onProvisionalFrame(GifSource.Frame frame);
+
+    /** Called when the GIF trailer is reached. */
+    void onComplete();
+  }
+}
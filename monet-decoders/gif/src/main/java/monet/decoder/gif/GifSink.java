@@ -0,0 +1,378 @@
+package monet.decoder.gif;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import okio.BufferedSink;
+
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_BACKGROUND;
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_LEAVE;
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_UNKNOWN;
+
+/**
+ * Writes an animation as a GIF, one composited ARGB frame at a time. Frames may come straight from
+ * a {@link GifSource}; reading one at a {@linkplain GifSource#setSampleSize(int) reduced sample
+ * size} re-encodes an animation at the size it's displayed.
+ * <p>
+ * Each frame is written as the smallest rectangle covering the pixels which changed since the
+ * previous frame, with the unchanged pixels inside it left transparent so that they compress to
+ * long runs. A frame which changes nothing extends the delay of the one before it instead. Colors
+ * are collected into a palette kept from one frame to the next: if the first frame is opaque, its
+ * colors become the global color table, and later frames only carry a local color table once they
+ * use other colors. A frame may have at most 255 colors besides transparency; one with more is
+ * reduced to a fixed palette of 216 colors. Pixels less than half opaque are written as
+ * transparent, and all others as opaque.
+ * <p>
+ * Only the last frame's pixels and one encoded frame are held in memory. Each frame is written
+ * once the next arrives, since a pixel can only turn from opaque to transparent if the frame
+ * before it is disposed to the background. Frames are disposed so that decoders which apply a
+ * frame's disposal method before drawing it, as {@link GifSource} does, show the same as those
+ * which apply it afterwards. Decoders which fill with the background color rather than
+ * transparency, as {@link GifSource} does when there is a global color table, show black where
+ * pixels turn transparent.
+ */
+public final class GifSink implements Closeable {
+  // Transparent pixels, and unchanged pixels, take the palette's first color and index zero.
+  private static final int TRANSPARENT = 0;
+
+  private final BufferedSink sink;
+  private final int width;
+  private final int height;
+  private final Palette palette = new Palette();
+  private final LzwEncoder lzw = new LzwEncoder();
+  private int repeatCount;
+
+  // The canvas as a decoder shows it once the pending frame is drawn.
+  @Nullable private int[] canvas;
+  @Nullable private Pending pending;
+  private boolean global;
+  private int generation;
+  private boolean closed;
+
+  // The global color table, once the header is written.
+  private boolean headerWritten;
+  private int globalColors;
+  private int globalBits;
+  private int globalGeneration;
+
+  /** Create a sink which writes a GIF of {@code width} by {@code height} pixels to {@code sink}. */
+  public GifSink(BufferedSink sink, int width, int height) {
+    if (width < 1 || width > 0xffff) throw new IllegalArgumentException("width: " + width);
+    if (height < 1 || height > 0xffff) throw new IllegalArgumentException("height: " + height);
+    this.sink = sink;
+    this.width = width;
+    this.height = height;
+    palette.indexOf(TRANSPARENT);
+  }
+
+  /**
+   * Play the animation {@code repeatCount} more times after the first, or forever if {@link
+   * GifSource.Header#REPEAT_FOREVER}. Zero, the default, plays it once. Must be called before the
+   * first frame is written.
+   */
+  public void setRepeatCount(int repeatCount) {
+    if (repeatCount < GifSource.Header.REPEAT_FOREVER || repeatCount > 0xffff) {
+      throw new IllegalArgumentException("repeatCount: " + repeatCount);
+    }
+    if (canvas != null) throw new IllegalStateException("frames have already been written");
+    this.repeatCount = repeatCount;
+  }
+
+  /**
+   * Write a frame read from a {@link GifSource} whose canvas is the size of this sink. Provisional
+   * frames are skipped.
+   */
+  public void writeFrame(GifSource.Frame frame) throws IOException {
+    if (frame.isProvisional()) return;
+    if (frame.canvasWidth() != width || frame.canvasHeight() != height) {
+      throw new IllegalArgumentException("frame is " + frame.canvasWidth() + "x"
+          + frame.canvasHeight() + ", not " + width + "x" + height);
+    }
+    writeFrame(frame.pixels(), frame.delayTime());
+  }
+
+  /**
+   * Write a frame of {@code pixels}, one ARGB color for each pixel of the canvas in rows, shown
+   * for {@code delayTime} milliseconds. The array is not kept.
+   */
+  public void writeFrame(int[] pixels, int delayTime) throws IOException {
+    if (closed) throw new IllegalStateException("closed");
+    if (pixels.length < width * height) {
+      throw new IllegalArgumentException("pixels.length < " + width * height);
+    }
+    if (delayTime < 0) throw new IllegalArgumentException("delayTime < 0: " + delayTime);
+
+    if (canvas == null) {
+      // Decoders start from the background, so the first frame covers the whole canvas.
+      canvas = new int[width * height];
+      global = true;
+      for (int i = 0; i < width * height; i++) {
+        if (visible(pixels[i]) == TRANSPARENT) {
+          global = false;
+          break;
+        }
+      }
+      pending = encode(pixels, 0, 0, width, height, delayTime);
+      return;
+    }
+
+    // Find the pixels which changed.
+    int left = width, top = height, right = 0, bottom = 0;
+    boolean clears = false;
+    for (int y = 0; y < height; y++) {
+      final int row = y * width;
+      for (int x = 0; x < width; x++) {
+        final int color = visible(pixels[row + x]);
+        if (color != canvas[row + x]) {
+          if (x < left) left = x;
+          if (x >= right) right = x + 1;
+          if (y < top) top = y;
+          bottom = y + 1;
+          clears |= color == TRANSPARENT;
+        }
+      }
+    }
+    if (left >= right) {
+      pending.delay += delayTime;
+      return;
+    }
+
+    final boolean cleared = clears;
+    if (clears) {
+      // Only disposing to the background makes pixels transparent again, so the previous frame
+      // covers the whole canvas and this frame starts from nothing.
+      final Pending previous = pending;
+      pending = encode(canvas, 0, 0, width, height, previous.delay);
+      pending.disposal = DISPOSAL_METHOD_BACKGROUND;
+      Arrays.fill(canvas, TRANSPARENT);
+      flush();
+
+      left = width;
+      top = height;
+      right = 0;
+      bottom = 0;
+      for (int y = 0; y < height; y++) {
+        final int row = y * width;
+        for (int x = 0; x < width; x++) {
+          if (visible(pixels[row + x]) != TRANSPARENT) {
+            if (x < left) left = x;
+            if (x >= right) right = x + 1;
+            if (y < top) top = y;
+            bottom = y + 1;
+          }
+        }
+      }
+      if (left >= right) {
+        // Nothing to draw, but the delay needs a frame.
+        left = 0;
+        top = 0;
+        right = 1;
+        bottom = 1;
+      }
+    } else {
+      flush();
+    }
+
+    pending = encode(pixels, left, top, right - left, bottom - top, delayTime);
+    // Decoders which dispose before drawing a frame rather than after clear for this frame too,
+    // while the others leave it in place.
+    if (cleared) pending.disposal = DISPOSAL_METHOD_UNKNOWN;
+  }
+
+  /** Write the last frame and the trailer, and close the underlying sink. */
+  @Override public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    try {
+      if (pending != null) {
+        flush();
+      } else {
+        writeHeader(null);
+      }
+      sink.writeByte(0x3b);
+    } finally {
+      sink.close();
+    }
+  }
+
+  /**
+   * Index the region of {@code pixels}, leaving pixels which match the canvas transparent, and
+   * draw it onto the canvas.
+   */
+  private Pending encode(int[] pixels, int left, int top, int width, int height, int delay) {
+    final int[] canvas = this.canvas;
+    final byte[] indices = new byte[width * height];
+    int maxIndex = 0;
+    boolean transparent = false;
+
+    // Try the colors so far, then only this frame's colors, then a fixed palette.
+    attempts:
+    for (int attempt = 0; ; attempt++) {
+      maxIndex = 0;
+      transparent = false;
+      int i = 0;
+      for (int y = 0; y < height; y++) {
+        int pos = (top + y) * this.width + left;
+        int last = TRANSPARENT;
+        int index = 0;
+        for (int x = 0; x < width; x++, pos++) {
+          int color = visible(pixels[pos]);
+          if (color == canvas[pos] && pixels != canvas) {
+            color = TRANSPARENT;
+          } else if (attempt == 2 && color != TRANSPARENT) {
+            color = quantize(color);
+          }
+          // Runs of one color are common, so skip the lookup for them.
+          if (color != last) {
+            index = palette.indexOf(color);
+            if (index < 0) {
+              palette.clear();
+              palette.indexOf(TRANSPARENT);
+              generation++;
+              continue attempts;
+            }
+            if (index > maxIndex) maxIndex = index;
+            last = color;
+          }
+          if (index == 0) transparent = true;
+          indices[i++] = (byte) index;
+        }
+      }
+      break;
+    }
+
+    final int[] colorTable = palette.colorTable();
+    int i = 0;
+    for (int y = 0; y < height; y++) {
+      int pos = (top + y) * this.width + left;
+      for (int x = 0; x < width; x++, pos++) {
+        final int index = indices[i++] & 0xff;
+        if (index != 0) canvas[pos] = colorTable[index];
+      }
+    }
+
+    return new Pending(left, top, width, height, delay, indices, colorTable, generation, maxIndex,
+        transparent);
+  }
+
+  private void flush() throws IOException {
+    final Pending frame = pending;
+    pending = null;
+    final boolean first = !headerWritten;
+    if (first) writeHeader(frame);
+
+    // A still image needs no Graphic Control Extension, and decoders give it no delay without one.
+    if (!first || frame.delay > 0 || frame.transparent
+        || frame.disposal != DISPOSAL_METHOD_LEAVE) {
+      sink.writeByte(0x21)
+          .writeByte(0xf9)
+          .writeByte(4)
+          .writeByte(frame.disposal << 2 | (frame.transparent ? 1 : 0))
+          .writeShortLe(Math.min((frame.delay + 5) / 10, 0xffff))
+          .writeByte(0)
+          .writeByte(0);
+    }
+
+    // Image Descriptor
+    final boolean local = !global || frame.generation != globalGeneration
+        || frame.maxIndex >= globalColors;
+    final int bits = local ? tableBits(frame.colorTable.length) : globalBits;
+    sink.writeByte(0x2c)
+        .writeShortLe(frame.left)
+        .writeShortLe(frame.top)
+        .writeShortLe(frame.width)
+        .writeShortLe(frame.height)
+        .writeByte(local ? 0x80 | (bits - 1) : 0);
+    if (local) writeColorTable(frame.colorTable, bits);
+
+    lzw.encode(sink, Math.max(bits, 2), frame.indices, frame.indices.length);
+  }
+
+  private void writeHeader(@Nullable Pending first) throws IOException {
+    headerWritten = true;
+    global &= first != null;
+    sink.writeUtf8("GIF89a")
+        .writeShortLe(width)
+        .writeShortLe(height);
+    if (global) {
+      globalColors = first.colorTable.length;
+      globalBits = tableBits(globalColors);
+      globalGeneration = first.generation;
+      sink.writeByte(0x80 | 0x70 | (globalBits - 1));
+    } else {
+      sink.writeByte(0);
+    }
+    // Background color index and pixel aspect ratio.
+    sink.writeByte(0).writeByte(0);
+    if (global) writeColorTable(first.colorTable, globalBits);
+
+    if (repeatCount != 0) {
+      // Application Extension
+      sink.writeByte(0x21)
+          .writeByte(0xff)
+          .writeByte(11)
+          .writeUtf8("NETSCAPE2.0")
+          .writeByte(3)
+          .writeByte(1)
+          .writeShortLe(repeatCount == GifSource.Header.REPEAT_FOREVER ? 0 : repeatCount)
+          .writeByte(0);
+    }
+  }
+
+  private void writeColorTable(int[] colors, int bits) throws IOException {
+    for (int i = 0; i < 1 << bits; i++) {
+      final int color = i < colors.length ? colors[i] : 0;
+      sink.writeByte(color >> 16).writeByte(color >> 8).writeByte(color);
+    }
+  }
+
+  /** The size field of a color table holding {@code count} colors. */
+  private static int tableBits(int count) {
+    int bits = 1;
+    while (1 << bits < count) bits++;
+    return bits;
+  }
+
+  /** The color a decoder shows for {@code color}, which is either transparent or opaque. */
+  private static int visible(int color) {
+    return color >>> 24 < 0x80 ? TRANSPARENT : color | 0xff000000;
+  }
+
+  /** Round {@code color} to the nearest of six levels in each channel. */
+  private static int quantize(int color) {
+    final int r = ((color >> 16 & 0xff) * 5 + 127) / 255 * 51;
+    final int g = ((color >> 8 & 0xff) * 5 + 127) / 255 * 51;
+    final int b = ((color & 0xff) * 5 + 127) / 255 * 51;
+    return 0xff000000 | r << 16 | g << 8 | b;
+  }
+
+  /** A frame encoded but not yet written, until the next frame shows how to dispose of it. */
+  private static final class Pending {
+    final int left;
+    final int top;
+    final int width;
+    final int height;
+    final byte[] indices;
+    final int[] colorTable;
+    final int generation;
+    final int maxIndex;
+    final boolean transparent;
+    int delay;
+    int disposal = DISPOSAL_METHOD_LEAVE;
+
+    Pending(int left, int top, int width, int height, int delay, byte[] indices,
+        int[] colorTable, int generation, int maxIndex, boolean transparent) {
+      this.left = left;
+      this.top = top;
+      this.width = width;
+      this.height = height;
+      this.delay = delay;
+      this.indices = indices;
+      this.colorTable = colorTable;
+      this.generation = generation;
+      this.maxIndex = maxIndex;
+      this.transparent = transparent;
+    }
+  }
+}
@@ -1,12 +1,21 @@
 package monet.decoder.gif;
 
 import android.annotation.SuppressLint;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import javax.annotation.Nullable;
+import monet.internal.Util;
 import okio.Buffer;
 import okio.BufferedSource;
 import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
 import okio.Source;
 import okio.Timeout;
 
@@ -28,34 +37,65 @@ public final class GifSource implements Source {
       ByteString.encodeString("NETSCAPE2.0", Charset.forName("US-ASCII"));
 
   // Frame disposal methods
-  private static final int DISPOSAL_METHOD_UNKNOWN = 0;
-  private static final int DISPOSAL_METHOD_LEAVE = 1;
-  private static final int DISPOSAL_METHOD_BACKGROUND = 2;
-  private static final int DISPOSAL_METHOD_RESTORE = 3;
+  static final int DISPOSAL_METHOD_UNKNOWN = 0;
+  static final int DISPOSAL_METHOD_LEAVE = 1;
+  static final int DISPOSAL_METHOD_BACKGROUND = 2;
+  static final int DISPOSAL_METHOD_RESTORE = 3;
 
-  // Decoding parameters
-  private static final int MAX_STACK_SIZE = 4096;
+  // Work buffers, borrowed until the source is closed.
+  @Nullable private DecodeContext context;
 
-  // Work buffers
-  private Buffer indexData;
-  private short[] prefix;
-  private byte[] suffix;
-  private byte[] pixelStack;
+  // Cancellation. Closing from another thread while a frame is being decoded only sets the flag,
+  // and the decoding thread releases the work buffers and closes the source once it stops, so
+  // that nothing it is still reading from is recycled. Guarded by this.
+  private volatile boolean closed;
+  private int busy;
 
-  private final BufferedSource source;
+  private BufferedSource source;
+  @Nullable private final SeekableSource seekable;
 
   private int section = SECTION_HEADER;
   private int frameSection = FRAME_HEADER;
 
   private Header header;
   private Frame frame;
-  private ByteString restoreCanvas;
+  private Compositor compositor;
+  private int sampleSize = 1;
+  private FramePipeline pipeline;
+  private boolean progressive;
+  @Nullable private ForkJoinPool compositingPool;
+  private int compositingThreshold = Compositor.DEFAULT_PARALLEL_THRESHOLD;
+  private int compositingBandSize = Compositor.DEFAULT_BAND_SIZE;
+  private boolean decodeCovering = true;
+  @Nullable private Frame partial;
   private int pos = 0;
+  private final Buffer.UnsafeCursor cursor = new Buffer.UnsafeCursor();
+
+  // Seeking
+  private int frameIndex;
+  private long frameTime;
+  @Nullable private Frame replay;
+  private GifIndex index;
+  private int keyframeInterval;
+  private TreeMap<Integer, Compositor.State> keyframes;
 
   GifSource(BufferedSource source) {
     this.source = source;
+    this.seekable = null;
+  }
+
+  /** Create a source which reads {@code seekable}, and which may seek backwards as well. */
+  public GifSource(SeekableSource seekable) throws IOException {
+    this.source = Okio.buffer(seekable.open(0));
+    this.seekable = seekable;
   }
 
+  /**
+   * Read the composited frames as a stream of big-endian ARGB pixels, one frame after another.
+   * Each frame is {@code 4 * canvasWidth * canvasHeight} bytes, and a single read never returns
+   * bytes from more than one frame: use {@link #frameBytesRemaining()} to find where a frame ends
+   * and {@link #currentFrame()} for its timing.
+   */
   @Override public long read(Buffer sink, long byteCount) throws IOException {
     if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0 :" + byteCount);
     if (byteCount == 0) return 0;
@@ -66,18 +106,19 @@ public final class GifSource implements Source {
     }
 
     if (section == SECTION_BODY) {
-      if (frame == null || pos >= frame.pixelData.size()) {
-        frameSection = FRAME_HEADER;
-        frame = readFrame();
+      if (frame == null || pos >= frame.pixelData.length * 4) {
+        do {
+          frame = readFrame();
+        } while (frame != null && frame.provisional);
         pos = 0;
       }
       if (frame == null) {
         section = SECTION_DONE;
         return -1;
       }
-      int bytes = (int) Math.min(frame.pixelData.size() - pos, byteCount);
-      sink.write(frame.pixelData.substring(pos, bytes));
-      pos = bytes;
+      final int bytes = (int) Math.min(frame.pixelData.length * 4 - pos, byteCount);
+      writePixels(sink, frame.pixelData, pos, bytes);
+      pos += bytes;
       return bytes;
     }
 
@@ -88,7 +129,73 @@ public final class GifSource implements Source {
     return -1;
   }
 
+  /**
+   * Write {@code byteCount} bytes of {@code pixels}, starting at byte {@code offset}, straight
+   * into the segments of {@code sink}.
+   */
+  private void writePixels(Buffer sink, int[] pixels, int offset, int byteCount) {
+    final Buffer.UnsafeCursor cursor = sink.readAndWriteUnsafe(this.cursor);
+    try {
+      final int end = offset + byteCount;
+      while (offset < end) {
+        final long size = sink.size();
+        final int count = Math.min((int) cursor.expandBuffer(1), end - offset);
+        final byte[] data = cursor.data;
+        int to = cursor.start;
+        final int limit = to + count;
+
+        // Finish a pixel left partly written by the last read.
+        while (to < limit && (offset & 3) != 0) {
+          data[to++] = (byte) (pixels[offset >> 2] >> (24 - (offset & 3) * 8));
+          offset++;
+        }
+        for (int i = offset >> 2; to + 4 <= limit; i++) {
+          final int pixel = pixels[i];
+          data[to] = (byte) (pixel >>> 24);
+          data[to + 1] = (byte) (pixel >>> 16);
+          data[to + 2] = (byte) (pixel >>> 8);
+          data[to + 3] = (byte) pixel;
+          to += 4;
+          offset += 4;
+        }
+        while (to < limit) {
+          data[to++] = (byte) (pixels[offset >> 2] >> (24 - (offset & 3) * 8));
+          offset++;
+        }
+
+        cursor.resizeBuffer(size + count);
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * The frame whose pixels the last {@link #read(Buffer, long)} returned, or null before the
+   * first read.
+   */
+  @Nullable public Frame currentFrame() {
+    return frame;
+  }
+
+  /**
+   * The number of bytes of the {@linkplain #currentFrame() current frame} which {@link
+   * #read(Buffer, long)} has yet to return. Zero at a frame boundary.
+   */
+  public long frameBytesRemaining() {
+    return frame != null ? frame.pixelData.length * 4L - pos : 0;
+  }
+
   public Header readHeader() throws IOException {
+    enter();
+    try {
+      return readHeaderInternal();
+    } finally {
+      exit();
+    }
+  }
+
+  private Header readHeaderInternal() throws IOException {
     // Signature
     //
     //    7 6 5 4 3 2 1 0        Field Name                    Type
@@ -148,53 +255,455 @@ public final class GifSource implements Source {
 
     // Peek for netscape extension
     int loopCount = 0;
+    int repeatCount = 0;
     if (source.request(19)) {
-      ByteString extension = source.buffer().snapshot(13);
+      ByteString extension = source.buffer().snapshot(19);
       if (extension.getByte(0) == 0x21
-          && extension.getByte(1) == 0xff
-          && extension.rangeEquals(3, APPLICATION_NETSCAPE, 0, 11)) {
-        source.skip(14); // extension header, app extension id
+          && extension.getByte(1) == (byte) 0xff
+          && extension.rangeEquals(3, APPLICATION_NETSCAPE, 0, 11)
+          && extension.getByte(14) == 3
+          && extension.getByte(15) == 1) {
+        source.skip(16); // extension header, app extension id, sub-block size and id
         loopCount = readShort();
+        repeatCount = loopCount == 0 ? Header.REPEAT_FOREVER : loopCount;
         source.skip(1); // block terminator
       }
     }
 
     final Header header = new Header(width, height, globalColorTable, globalColorTableSize,
-        backgroundIndex, loopCount);
+        backgroundIndex, loopCount, repeatCount);
 
     section = SECTION_BODY;
     this.header = header;
     return header;
   }
 
+  /** Returns the header, once it has been read. */
+  Header header() {
+    return header;
+  }
+
+  /** Returns the {@linkplain #setSampleSize(int) sample size} frames are composited at. */
+  int sampleSize() {
+    return sampleSize;
+  }
+
+  /**
+   * Read and composite the next frame, or return null after the last one. If the source is
+   * {@linkplain #close() closed} from another thread meanwhile, this stops within a data sub-block
+   * or a row of compositing and throws {@link InterruptedIOException}.
+   */
   @Nullable public Frame readFrame() throws IOException {
+    enter();
+    try {
+      final Frame frame = readFrameInternalChecked();
+      // Compositing may have stopped partway.
+      throwIfClosed();
+      return frame;
+    } finally {
+      exit();
+    }
+  }
+
+  /** Start reading from the source, which stops {@link #close()} from closing it underneath. */
+  private void enter() throws InterruptedIOException {
+    synchronized (this) {
+      throwIfClosed();
+      busy++;
+    }
+  }
+
+  /** Stop reading from the source, closing it if {@link #close()} was called meanwhile. */
+  private void exit() {
+    final boolean release;
+    synchronized (this) {
+      release = --busy == 0 && closed;
+    }
+    if (release) {
+      release();
+      Util.closeQuietly(source);
+    }
+  }
+
+  @Nullable private Frame readFrameInternalChecked() throws IOException {
     if (section == SECTION_HEADER) header = readHeader();
-    if (section == SECTION_DONE) return null;
-    frame = readFrameInternal(frame);
+    if (replay != null) {
+      frame = replay;
+      replay = null;
+      return frame;
+    }
+    if (section == SECTION_DONE && (pipeline == null || pipeline.isEmpty())) return null;
+    frame = pipeline != null ? readFramePipelined() : readFrameInternal();
+    if (frame != null && !frame.provisional) {
+      if (seekable != null && keyframeInterval > 0 && (frameIndex + 1) % keyframeInterval == 0) {
+        if (keyframes == null) keyframes = new TreeMap<>();
+        if (!keyframes.containsKey(frameIndex)) {
+          keyframes.put(frameIndex, compositor.checkpoint());
+        }
+      }
+      frameIndex++;
+      frameTime += frame.delayTime;
+    }
     return frame;
   }
 
-  @Nullable private Frame readFrameInternal(final Frame prev) throws IOException {
+  @Nullable private Frame readFrameInternal() throws IOException {
+    if (partial != null) return readFrameImageDataProgressive(partial);
     frame = new Frame();
-    while (frameSection == FRAME_HEADER) {
-      int code = readByte();
-      switch (code) {
-        case 0x21:
-          readFrameExtension(frame);
-          break;
-        case 0x2c:
-          readImageDescriptor(frame);
-          break;
-        case 0x3b:
-          section = SECTION_DONE;
-          return null;  // Trailer
-      }
+    if (!readFrameHeader(frame, true)) return null;
+    if (progressive && frame.interlaceFlag) {
+      startFrameIndexData(frame.imageWidth * frame.imageHeight);
+      return readFrameImageDataProgressive(frame);
     }
-    frame.dispose(header, prev, restoreCanvas);
     readFrameImageData(frame);
     return frame;
   }
 
+  /**
+   * Decode an interlaced frame's data up to the end of its next interlace pass. Returns a
+   * provisional frame at the end of each of the first three passes, then the whole frame.
+   */
+  private Frame readFrameImageDataProgressive(Frame frame) throws IOException {
+    final DecodeContext context = context();
+    int size;
+    while ((size = readByte()) != 0) {
+      throwIfClosed();
+      context.lzw.decode(source, size);
+      final int passes = Compositor.interlacePasses(frame, context.lzw.position());
+      if (passes > frame.passes && passes < 4) {
+        previewFrameImageData(frame, context.indexData(), passes);
+        partial = frame;
+        return frame;
+      }
+    }
+    context.lzw.finish();
+    partial = null;
+    readFrameImageData(frame, context.indexData());
+    return frame;
+  }
+
+  @Nullable private Frame readFramePipelined() throws IOException {
+    while (section != SECTION_DONE && !pipeline.isFull()) {
+      final Frame next = new Frame();
+      if (!readFrameHeader(next, true)) break;
+      pipeline.submit(next, source);
+      frameSection = FRAME_HEADER;
+    }
+
+    frame = pipeline.take();
+    if (frame != null) compose(frame);
+    return frame;
+  }
+
+  /** Read a frame's metadata but skip its image data. */
+  @Nullable private Frame skipFrame() throws IOException {
+    final Frame frame = new Frame();
+    if (!readFrameHeader(frame, false)) return null;
+    source.skip(1); // LZW minimum code size
+    skipSubBlocks();
+    frameSection = FRAME_HEADER;
+    return frame;
+  }
+
+  /** Read the blocks preceding a frame's image data. Returns false at the trailer. */
+  private boolean readFrameHeader(Frame frame, boolean readColorTable) throws IOException {
+    while (frameSection == FRAME_HEADER) {
+      if (!readFrameBlock(frame, readColorTable)) return false;
+    }
+    return true;
+  }
+
+  /** Read a single block preceding a frame's image data. Returns false at the trailer. */
+  boolean readFrameBlock(Frame frame, boolean readColorTable) throws IOException {
+    int code = readByte();
+    switch (code) {
+      case 0x21:
+        readFrameExtension(frame);
+        break;
+      case 0x2c:
+        readImageDescriptor(frame, readColorTable);
+        break;
+      case 0x3b:
+        section = SECTION_DONE;
+        return false;  // Trailer
+    }
+    return true;
+  }
+
+  /**
+   * Composite frames at a reduced size, keeping one of every {@code sampleSize} pixels in each
+   * dimension. Compressed data must still be decoded in full, but compositing cost and canvas
+   * memory shrink by the square of the sample size. Must be called before the first frame is read.
+   */
+  public void setSampleSize(int sampleSize) {
+    if (sampleSize < 1) throw new IllegalArgumentException("sampleSize < 1: " + sampleSize);
+    if (compositor != null) throw new IllegalStateException("frames have already been read");
+    this.sampleSize = sampleSize;
+  }
+
+  /**
+   * Decode the compressed data of up to {@code depth} upcoming frames in parallel on {@code
+   * executor}, while frames are still composited in order on the calling thread. This pays off
+   * when a whole animation is decoded as fast as possible; each frame in flight holds a copy of
+   * its compressed data and its own index buffer. Must be called before the first frame is read.
+   */
+  public void setPipeline(Executor executor, int depth) {
+    if (depth < 1) throw new IllegalArgumentException("depth < 1: " + depth);
+    if (frameIndex > 0 || frameSection != FRAME_HEADER) {
+      throw new IllegalStateException("frames have already been read");
+    }
+    this.pipeline = new FramePipeline(executor, depth);
+  }
+
+  /**
+   * Return interlaced frames from {@link #readFrame()} progressively: once as a provisional frame
+   * after each of the first three interlace passes, with missing rows filled from the row above,
+   * and then once more when complete. Provisional frames have {@link Frame#isProvisional()} set
+   * and don't count towards frame numbers or times. Ignored when {@linkplain #setPipeline
+   * pipelining}.
+   */
+  public void setProgressive(boolean progressive) {
+    this.progressive = progressive;
+  }
+
+  /**
+   * Composite frames covering at least a megapixel of the canvas in bands of rows on {@code pool}
+   * rather than only on the calling thread. This shortens the time to each frame of a very large
+   * animation on a device with several cores, but costs more in total than compositing on one
+   * thread. Null, the default, disables it. Must be called before the first frame is read.
+   */
+  public void setCompositingPool(@Nullable ForkJoinPool pool) {
+    setCompositingPool(pool, Compositor.DEFAULT_PARALLEL_THRESHOLD, Compositor.DEFAULT_BAND_SIZE);
+  }
+
+  /**
+   * Composite frames covering at least {@code threshold} canvas pixels on {@code pool}, in bands
+   * of about {@code bandSize} pixels.
+   */
+  void setCompositingPool(@Nullable ForkJoinPool pool, int threshold, int bandSize) {
+    if (compositor != null) throw new IllegalStateException("frames have already been read");
+    if (threshold < 1) throw new IllegalArgumentException("threshold < 1: " + threshold);
+    if (bandSize < 1) throw new IllegalArgumentException("bandSize < 1: " + bandSize);
+    this.compositingPool = pool;
+    this.compositingThreshold = threshold;
+    this.compositingBandSize = bandSize;
+  }
+
+  /**
+   * Decode frames which {@linkplain #isCovering cover} the canvas straight onto it, as by default,
+   * or through the index buffer like any other frame if false.
+   */
+  void setDecodeCovering(boolean decodeCovering) {
+    this.decodeCovering = decodeCovering;
+  }
+
+  /**
+   * Save a copy of the composited canvas every {@code interval} frames, so that {@linkplain
+   * #seekToFrame(int) seeking} backwards can resume from the nearest copy instead of the first
+   * frame. Each copy costs a full canvas of memory. Zero, the default, disables keyframes.
+   */
+  public void setKeyframeInterval(int interval) {
+    if (interval < 0) throw new IllegalArgumentException("interval < 0: " + interval);
+    this.keyframeInterval = interval;
+  }
+
+  /**
+   * Returns the index of all frames in the GIF, reading it in a separate pass over the data if
+   * necessary. This requires a {@link SeekableSource}.
+   */
+  public GifIndex index() throws IOException {
+    if (index == null) {
+      if (seekable == null) throw new IllegalStateException("source is not seekable");
+      index = readIndex(seekable);
+    }
+    return index;
+  }
+
+  static GifIndex readIndex(SeekableSource seekable) throws IOException {
+    final Source source = seekable.open(0);
+    try {
+      return scan(source, Long.MAX_VALUE);
+    } finally {
+      Util.closeQuietly(source);
+    }
+  }
+
+  /**
+   * Index the GIF at the start of {@code source} without consuming it or decompressing any image
+   * data, to find its frame count, timing, frame bounds and decoded size much faster than
+   * decoding it. This reads through {@link BufferedSource#peek()}, so {@code source} can be decoded
+   * afterwards.
+   * <p>
+   * If the data ends before the GIF trailer, the index covers the frames seen so far and is not
+   * {@linkplain GifIndex#isComplete() complete}. To probe only the bytes which have already
+   * arrived, without waiting for more, pass a copy of a source's buffer: {@code
+   * probe(source.getBuffer().clone())}.
+   *
+   * @throws EOFException if the data ends within the header.
+   */
+  public static GifIndex probe(BufferedSource source) throws IOException {
+    return scan(source.peek(), Long.MAX_VALUE);
+  }
+
+  /**
+   * Index the GIF at the start of {@code source} as {@link #probe(BufferedSource)} does, but look
+   * no further ahead than {@code byteCount} bytes, or the end of the header if that is further.
+   * This bounds how long a probe of a slow download can wait for data. If the GIF is longer, the
+   * index is not {@linkplain GifIndex#isComplete() complete}.
+   *
+   * @throws EOFException if the data ends within the header.
+   */
+  public static GifIndex probe(BufferedSource source, long byteCount) throws IOException {
+    if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+    return scan(source.peek(), byteCount);
+  }
+
+  private static GifIndex scan(Source source, long byteCount) throws IOException {
+    final CountingSource counter = new CountingSource(source);
+    final BufferedSource buffered = Okio.buffer(counter);
+    final GifSource scanner = new GifSource(buffered);
+    final GifIndex index = new GifIndex(scanner.readHeader());
+    counter.limit = Math.max(byteCount, counter.count);
+    try {
+      while (true) {
+        final long offset = counter.count - buffered.getBuffer().size();
+        final Frame frame = scanner.skipFrame();
+        if (frame == null) break;
+        index.add(offset, frame);
+      }
+      index.setComplete();
+    } catch (EOFException e) {
+      // Report the frames seen before the data ran out.
+    }
+    index.setByteCount(counter.count - buffered.getBuffer().size());
+    return index;
+  }
+
+  /**
+   * Position this source so that the next call to {@link #readFrame()} returns frame number
+   * {@code frame}, counting from zero.
+   * <p>
+   * Seeking composites every frame between the starting point and {@code frame}. A source created
+   * from a {@link SeekableSource} starts from whichever is closest of the current frame, the
+   * nearest {@linkplain #setKeyframeInterval(int) keyframe}, or the nearest frame which does not
+   * depend on earlier frames. Other sources may only seek forwards.
+   */
+  public void seekToFrame(int frame) throws IOException {
+    enter();
+    try {
+      seekFrame(frame);
+    } finally {
+      exit();
+    }
+  }
+
+  private void seekFrame(int frame) throws IOException {
+    if (frame < 0) throw new IllegalArgumentException("frame < 0: " + frame);
+    if (section == SECTION_HEADER) readHeader();
+
+    // The next frame to be composited, or the one waiting to be returned again.
+    final int current = replay != null ? frameIndex - 1 : frameIndex;
+
+    if (seekable != null) {
+      final GifIndex index = index();
+      if (frame >= index.frameCount()) {
+        throw new IllegalArgumentException("frame " + frame + " of " + index.frameCount());
+      }
+
+      final int independent = index.independentFrame(frame);
+      final Map.Entry<Integer, Compositor.State> keyframe =
+          keyframes != null ? keyframes.floorEntry(frame - 1) : null;
+
+      if (current > frame || current < independent
+          || (keyframe != null && current <= keyframe.getKey())) {
+        if (compositor == null) compositor = newCompositor();
+        if (keyframe != null && keyframe.getKey() >= independent) {
+          reopen(keyframe.getKey() + 1);
+          compositor.reset(keyframe.getValue());
+        } else {
+          reopen(independent);
+          compositor.reset(null);
+        }
+      }
+    } else if (current > frame) {
+      throw new IllegalStateException("cannot seek backwards: source is not seekable");
+    }
+
+    this.frame = null;
+    this.pos = 0;
+    if (replay != null && frameIndex - 1 != frame) {
+      // The frame being replayed was composited already.
+      replay = null;
+    }
+    while (frameIndex < frame) {
+      if (readFrame() == null) break;
+    }
+    invalidate();
+  }
+
+  /**
+   * Position this source so that the next call to {@link #readFrame()} returns the frame which is
+   * displayed {@code time} milliseconds into the animation.
+   *
+   * @see #seekToFrame(int)
+   */
+  public void seekToTime(long time) throws IOException {
+    enter();
+    try {
+      seekTime(time);
+    } finally {
+      exit();
+    }
+  }
+
+  private void seekTime(long time) throws IOException {
+    if (time < 0) throw new IllegalArgumentException("time < 0: " + time);
+    if (section == SECTION_HEADER) readHeader();
+
+    if (seekable != null) {
+      seekToFrame(index().frameAt(time));
+      return;
+    }
+
+    // Without an index, the only way to find the frame is to composite frames until one ends
+    // after the given time, then hand that one out again.
+    final long current = replay != null ? frameTime - replay.delayTime : frameTime;
+    if (time < current) {
+      throw new IllegalStateException("cannot seek backwards: source is not seekable");
+    }
+
+    this.frame = null;
+    this.pos = 0;
+    if (replay == null || time >= frameTime) {
+      replay = null;
+      Frame next;
+      do {
+        next = readFrame();
+      } while (next != null && frameTime <= time);
+      replay = next;
+    }
+    invalidate();
+  }
+
+  /** Whatever frame was seen before a seek is unrelated to the next one. */
+  private void invalidate() {
+    if (compositor != null) compositor.invalidate();
+    if (replay != null) replay.dirtyBounds.set(0, 0, replay.canvasWidth, replay.canvasHeight);
+  }
+
+  private void reopen(int frame) throws IOException {
+    final BufferedSource reopened = Okio.buffer(seekable.open(index.offset(frame)));
+    Util.closeQuietly(source);
+    source = reopened;
+    partial = null;
+    if (pipeline != null) pipeline.clear();
+    section = SECTION_BODY;
+    frameSection = FRAME_HEADER;
+    replay = null;
+    frameIndex = frame;
+    frameTime = index.startTime(frame);
+  }
+
   private void readFrameExtension(Frame frame) throws IOException {
     int code = readByte();
     switch (code) {
@@ -288,11 +797,21 @@ public final class GifSource implements Source {
       //    +---------------+
       case 0xff:
         // Ignore application extensions; we've already read the only one we care about (Netscape).
-        source.skip(readByte() + 13); // app extension id, app data, block terminator
+      default:
+        // Comment and plain text extensions are ignored, as are unknown extensions.
+        skipSubBlocks();
     }
   }
 
-  private void readImageDescriptor(Frame frame) throws IOException {
+  /** Skip data sub-blocks up to and including the block terminator. */
+  private void skipSubBlocks() throws IOException {
+    int size;
+    while ((size = readByte()) != 0) {
+      source.skip(size);
+    }
+  }
+
+  private void readImageDescriptor(Frame frame, boolean readColorTable) throws IOException {
     // Image Descriptor
     //
     //     7 6 5 4 3 2 1 0        Field Name                    Type
@@ -336,7 +855,9 @@ public final class GifSource implements Source {
     frame.sortFlag = (packed & 0x20) != 0;
     frame.localColorTableSize = 2 << (packed & 0x07);
 
-    if (frame.localColorTableFlag) {
+    if (frame.localColorTableFlag && !readColorTable) {
+      source.skip(frame.localColorTableSize * 3);
+    } else if (frame.localColorTableFlag) {
       // Local color table
       //
       //       7 6 5 4 3 2 1 0        Field Name                    Type
@@ -369,18 +890,76 @@ public final class GifSource implements Source {
   }
 
   private void readFrameImageData(Frame frame) throws IOException {
-    frame.indexData = readFrameIndexData(frame.imageWidth * frame.imageHeight);
-    frame.pixelData = readFramePixelData(frame);
+    if (isCovering(frame)) {
+      readFrameImageDataCovering(frame);
+    } else {
+      frame.indexData = readFrameIndexData(frame.imageWidth * frame.imageHeight);
+      compose(frame);
+    }
+    frameSection = FRAME_HEADER;
+  }
 
-    if (frame.disposalMethod == DISPOSAL_METHOD_UNKNOWN
-        || frame.disposalMethod == DISPOSAL_METHOD_LEAVE) {
-      restoreCanvas = frame.pixelData;
+  /**
+   * Returns true if {@code frame} replaces every pixel of the canvas with a color from its color
+   * table, so that its data can be decoded straight onto the canvas.
+   */
+  private boolean isCovering(Frame frame) throws IOException {
+    if (!decodeCovering) return false;
+    if (sampleSize != 1 || frame.interlaceFlag || frame.transparentColorFlag) return false;
+    if (frame.imageLeftPosition != 0 || frame.imageTopPosition != 0
+        || frame.imageWidth != header.width || frame.imageHeight != header.height) {
+      return false;
     }
+    // Leave out-of-range indices to the general path, which reports them the same way as always.
+    final int[] colors = frame.activeColorTable;
+    if (colors == null || !source.request(1)) return false;
+    final int dataSize = source.getBuffer().getByte(0) & 0xff;
+    return dataSize <= 8 && colors.length >= 1 << dataSize;
+  }
 
+  /**
+   * Decode the data of a {@linkplain #isCovering covering} frame straight into the canvas as
+   * colors, skipping the index buffer and the compositing pass.
+   */
+  private void readFrameImageDataCovering(Frame frame) throws IOException {
+    if (compositor == null) compositor = newCompositor();
+    final int[] canvas = compositor.beginCovering(frame);
+    final LzwDecoder lzw = context().lzw;
+    lzw.start(readByte(), canvas, frame.activeColorTable, canvas.length);
+    decodeSubBlocks(lzw);
+    frame.indexData = null;
+    frame.pixelData = compositor.composeCovering(frame);
+    frame.canvasWidth = compositor.width;
+    frame.canvasHeight = compositor.height;
+  }
+
+  /** Composite a frame whose index data was decoded elsewhere, ending the frame. */
+  void readFrameImageData(Frame frame, byte[] indexData) {
+    frame.indexData = indexData;
+    frame.provisional = false;
+    compose(frame);
     frameSection = FRAME_HEADER;
   }
 
-  private ByteString readFrameIndexData(final int count) throws IOException {
+  /** Composite a provisional frame once the first {@code passes} interlace passes are decoded. */
+  void previewFrameImageData(Frame frame, byte[] indexData, int passes) {
+    if (compositor == null) compositor = newCompositor();
+    frame.indexData = indexData;
+    frame.provisional = true;
+    frame.passes = passes;
+    frame.pixelData = compositor.preview(frame, indexData, passes);
+    frame.canvasWidth = compositor.width;
+    frame.canvasHeight = compositor.height;
+  }
+
+  private void compose(Frame frame) {
+    if (compositor == null) compositor = newCompositor();
+    frame.pixelData = compositor.compose(frame, frame.indexData);
+    frame.canvasWidth = compositor.width;
+    frame.canvasHeight = compositor.height;
+  }
+
+  private byte[] readFrameIndexData(final int count) throws IOException {
     // Image data block
     //
     //  7 6 5 4 3 2 1 0        Field Name                    Type
@@ -415,195 +994,79 @@ public final class GifSource implements Source {
     // +---------------+
     // |0 0 0 0 0 0 0 0|  Block Terminator
     // +---------------+
-    if (indexData == null) {
-      indexData = new Buffer();
-    } else {
-      indexData.clear();
-    }
-
-    if (prefix == null) prefix = new short[MAX_STACK_SIZE];
-    if (suffix == null) suffix = new byte[MAX_STACK_SIZE];
-    if (pixelStack == null) pixelStack = new byte[MAX_STACK_SIZE + 1];
-
-    final int dataSize = readByte();
-    final int clearCode = 1 << dataSize;
-    final int endCode = clearCode + 1;
-    int available = clearCode + 2;
-    int oldCode = -1;
-    int codeSize = dataSize + 1;
-    int codeMask = (1 << codeSize) - 1;
-    int datum = 0;
-    int bits = 0;
-    int first = 0;
-    int top = 0;
-    int remaining = 0;
-    int code;
-    int i;
-
-    for (code = 0; code < clearCode; code++) {
-      prefix[code] = 0;
-      suffix[code] = (byte) code;
-    }
-
-    for (i = 0; i < count; ) {
-      if (remaining == 0) {
-        remaining = readByte();
-        if (remaining <= 0) break;
-      }
-
-      datum |= readByte() << bits;
-      bits += 8;
-      remaining--;
-
-      while (bits >= codeSize) {
-        // Get the next code.
-        code = datum & codeMask;
-        datum >>= codeSize;
-        bits -= codeSize;
-
-        // Interpret the code.
-        if (code == clearCode) {
-          // Reset decoder.
-          codeSize = dataSize + 1;
-          codeMask = (1 << codeSize) - 1;
-          available = clearCode + 2;
-          oldCode = -1;
-          continue;
-        }
-
-        if (code == endCode || code > available) {
-          break;
-        }
-
-        if (oldCode == -1) {
-          indexData.writeByte(code);
-          i++;
-          oldCode = code;
-          first = code;
-          continue;
-        }
-
-        int inCode = code;
-        if (code >= available) {
-          pixelStack[top++] = (byte) first;
-          code = oldCode;
-        }
-
-        while (code >= clearCode) {
-          pixelStack[top++] = suffix[code];
-          code = prefix[code];
-        }
-
-        first = suffix[code] & 0xff;
-        pixelStack[top++] = (byte) first;
-
-        if (available >= MAX_STACK_SIZE) break;
-
-        prefix[available] = (short) oldCode;
-        suffix[available] = (byte) first;
-        available++;
-
-        if (((available & codeMask) == 0) && (available < MAX_STACK_SIZE)) {
-          codeSize++;
-          codeMask += available;
-        }
-
-        oldCode = inCode;
-
-        // Drain the pixel stack.
-        while (top > 0) {
-          indexData.writeByte(pixelStack[--top]);
-          i++;
-          pixelStack[top] = 0;
-        }
-      }
-    }
-
-    // Clear missing pixels.
-    for (; i < count; i++) {
-      indexData.writeByte(0);
-    }
-
-    source.skip(remaining + 1); // padding + block terminator
-    return indexData.snapshot();
+    final DecodeContext context = context();
+    final byte[] indexData = context.indexData(count);
+    context.lzw.start(readByte(), indexData, count);
+    decodeSubBlocks(context.lzw);
+    return indexData;
   }
 
-  private ByteString readFramePixelData(final Frame frame) throws IOException {
-    Buffer pixelData = new Buffer();
-    ByteString indexData = frame.indexData;
-    int[] colors = frame.activeColorTable;
-    int transparentIndex = frame.transparentColorFlag ? frame.transparentColorIndex : -1;
-
-    final int w = frame.imageWidth;
-    final int h = frame.imageHeight;
-    final int left = frame.imageLeftPosition;
-    final int top = frame.imageTopPosition;
-    final int right = left + w;
-    final int bottom = top + h;
-    final int stride = header.width * 4;
-    final Buffer canvas = new Buffer();
-    canvas.write(frame.canvas);
-
-    int dy, dx, sy;
-
-    int n1 = 0, n2 = 0, n3 = 0;
-    if (frame.interlaceFlag) {
-      n1 = (h + 7) / 8;
-      n2 = (h + 3) / 4;
-      n3 = (h + 1) / 2;
-    }
-
-    // Top unpopulated region
-    if (top > 0) {
-      pixelData.write(canvas, top * stride);
+  /** Decode all data sub-blocks of a frame, checking between each one for cancellation. */
+  private void decodeSubBlocks(LzwDecoder lzw) throws IOException {
+    int size;
+    while ((size = readByte()) != 0) {
+      throwIfClosed();
+      lzw.decode(source, size);
     }
+    lzw.finish();
+  }
 
-    for (dy = 0; dy < h; dy++) {
-      // Left unpopulated region
-      if (left > 0) {
-        pixelData.write(canvas, left * 4);
-      }
-
-      if (frame.interlaceFlag) {
-        sy = dy % 8 == 0 ?       dy      / 8
-           : dy % 4 == 0 ? n1 + (dy - 4) / 8
-           : dy % 2 == 0 ? n2 + (dy - 2) / 4
-           :               n3 + (dy - 1) / 2;
-      } else {
-        sy = dy;
-      }
-
-      for (dx = 0; dx < w; dx++) {
-        final int pos = sy * w + dx;
-        final int index = indexData.getByte(pos) & 0xff;
-        if (index == transparentIndex) {
-          pixelData.write(canvas, 4);
-        } else {
-          pixelData.writeInt(colors[index]);
-          canvas.skip(4);
-        }
-      }
+  private void throwIfClosed() throws InterruptedIOException {
+    if (closed) throw new InterruptedIOException("closed");
+  }
 
-      // Right unpopulated region
-      if (right < header.width) {
-        pixelData.write(canvas, (header.width - right) * 4);
-      }
-    }
+  /** Prepare to decode a frame's data a sub-block at a time. */
+  private void startFrameIndexData(final int count) throws IOException {
+    final DecodeContext context = context();
+    context.lzw.start(readByte(), context.indexData(count), count);
+  }
 
-    // Bottom unpopulated region
-    if (bottom < header.height) {
-      pixelData.write(canvas, (header.height - bottom) * stride);
-    }
+  private DecodeContext context() {
+    if (context == null) context = DecodeContext.acquire();
+    return context;
+  }
 
-    return pixelData.snapshot();
+  private Compositor newCompositor() {
+    final Compositor compositor = new Compositor(header, sampleSize);
+    compositor.setPool(compositingPool, compositingThreshold, compositingBandSize);
+    return compositor;
   }
 
   @Override public Timeout timeout() {
     return source.timeout();
   }
 
+  /**
+   * Close the source and release its work buffers. This may be called from another thread to
+   * cancel a {@link #readFrame()} in progress, in which case that thread releases the buffers and
+   * closes the underlying source as soon as it stops.
+   */
   @Override public void close() throws IOException {
-    source.close();
+    final boolean release;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      release = busy == 0;
+    }
+    if (release) {
+      release();
+      source.close();
+      return;
+    }
+
+    // Stop the read in progress as soon as possible.
+    final Compositor compositor = this.compositor;
+    if (compositor != null) compositor.cancel();
+    final FramePipeline pipeline = this.pipeline;
+    if (pipeline != null) pipeline.cancel();
+  }
+
+  private void release() {
+    if (pipeline != null) pipeline.clear();
+    if (context != null) {
+      context.release();
+      context = null;
+    }
   }
 
   private int readByte() throws IOException {
@@ -649,36 +1112,30 @@ public final class GifSource implements Source {
   }
 
   public static class Header {
+    /** {@link #repeatCount()} for an animation which loops forever. */
+    public static final int REPEAT_FOREVER = -1;
+
     final int width;
     final int height;
     final int globalColorTableSize;
     final int[] globalColorTable;
     final int backgroundIndex;
     final int loopCount;
-    final ByteString background;
+    final int repeatCount;
+    final int backgroundColor;
 
     Header(int width, int height, @Nullable int[] globalColorTable, int globalColorTableSize,
-        int backgroundIndex, int loopCount) {
+        int backgroundIndex, int loopCount, int repeatCount) {
       this.width = width;
       this.height = height;
       this.globalColorTable = globalColorTable;
       this.globalColorTableSize = globalColorTableSize;
       this.backgroundIndex = backgroundIndex;
       this.loopCount = loopCount;
-
-      Buffer canvas = new Buffer();
-      int count = width * height;
-      if (globalColorTable != null) {
-        int background = globalColorTable[backgroundIndex];
-        for (int i = 0; i < count; i++) {
-          canvas.writeInt(background);
-        }
-      } else {
-        for (int i = 0; i < count; i++) {
-          canvas.writeInt(0);
-        }
-      }
-      background = canvas.snapshot();
+      this.repeatCount = repeatCount;
+      this.backgroundColor = globalColorTable != null && backgroundIndex < globalColorTable.length
+          ? globalColorTable[backgroundIndex]
+          : 0;
     }
 
     public int width() {
@@ -692,6 +1149,19 @@ public final class GifSource implements Source {
     public int loopCount() {
       return loopCount;
     }
+
+    /**
+     * How many more times to play the animation after the first, as asked by its Netscape
+     * extension, or {@link #REPEAT_FOREVER}. Zero for a GIF with no Netscape extension.
+     */
+    public int repeatCount() {
+      return repeatCount;
+    }
+
+    /** The ARGB color shown wherever no frame has been drawn, or transparent black if none. */
+    public int backgroundColor() {
+      return backgroundColor;
+    }
   }
 
   public static class Frame {
@@ -717,9 +1187,13 @@ public final class GifSource implements Source {
     int[] activeColorTable;
 
     // Image data
-    ByteString canvas;
-    ByteString indexData;
-    ByteString pixelData;
+    byte[] indexData;
+    int[] pixelData;
+    int canvasWidth;
+    int canvasHeight;
+    boolean provisional;
+    int passes;
+    final Compositor.Bounds dirtyBounds = new Compositor.Bounds();
 
     Frame() {
       // Prevent instantiation outside this package.
@@ -733,7 +1207,49 @@ public final class GifSource implements Source {
       return loopCount;
     }
 
-    public ByteString pixels() {
+    /**
+     * Returns true if this is a preview of an interlaced frame which is still being decoded. See
+     * {@link GifSource#setProgressive(boolean)}.
+     */
+    public boolean isProvisional() {
+      return provisional;
+    }
+
+    /** The width of the {@linkplain #pixels() composited canvas}, after any sampling. */
+    public int canvasWidth() {
+      return canvasWidth;
+    }
+
+    /** The height of the {@linkplain #pixels() composited canvas}, after any sampling. */
+    public int canvasHeight() {
+      return canvasHeight;
+    }
+
+    /** The left edge of the region of the canvas which changed since the previous frame. */
+    public int dirtyLeft() {
+      return dirtyBounds.left;
+    }
+
+    /** The top edge of the region of the canvas which changed since the previous frame. */
+    public int dirtyTop() {
+      return dirtyBounds.top;
+    }
+
+    /** The right edge, exclusive, of the region which changed since the previous frame. */
+    public int dirtyRight() {
+      return dirtyBounds.right;
+    }
+
+    /** The bottom edge, exclusive, of the region which changed since the previous frame. */
+    public int dirtyBottom() {
+      return dirtyBounds.bottom;
+    }
+
+    /**
+     * Returns the composited ARGB pixels of this frame. The returned array is reused by the
+     * {@link GifSource} and is only valid until the next frame is read.
+     */
+    public int[] pixels() {
       return pixelData;
     }
 
@@ -741,28 +1257,6 @@ public final class GifSource implements Source {
       this.delayTime = delayTime <= 10 ? 100 : delayTime;
     }
 
-    void dispose(final Header header, @Nullable final Frame prev,
-        @Nullable final ByteString restoreCanvas) throws IOException {
-      switch (disposalMethod) {
-        case DISPOSAL_METHOD_LEAVE:
-          canvas = prev == null
-              ? header.background
-              : prev.pixelData;
-          break;
-
-        case DISPOSAL_METHOD_RESTORE:
-          canvas = restoreCanvas == null
-              ? header.background
-              : restoreCanvas;
-          break;
-
-        case DISPOSAL_METHOD_UNKNOWN:
-        case DISPOSAL_METHOD_BACKGROUND:
-        default:
-          canvas = header.background;
-      }
-    }
-
     @SuppressLint("DefaultLocale")
     @Override public String toString() {
       return String.format("Frame(\n"
@@ -805,4 +1299,24 @@ public final class GifSource implements Source {
       super(message);
     }
   }
+
+  /**
+   * Counts the bytes read from a source, to find the offset of each frame. Once {@link #limit}
+   * bytes have been read, the source appears to end.
+   */
+  private static final class CountingSource extends ForwardingSource {
+    long count;
+    long limit = Long.MAX_VALUE;
+
+    CountingSource(Source delegate) {
+      super(delegate);
+    }
+
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      if (count >= limit) return -1;
+      final long read = super.read(sink, Math.min(byteCount, limit - count));
+      if (read > 0) count += read;
+      return read;
+    }
+  }
 }
@@ -0,0 +1,110 @@
+package monet.decoder.gif;
+
+/**
+ * How {@link GifDecoder} plays an animation: which {@linkplain Mode mode} it loops in, and at what
+ * sample size. Chosen per animation by a {@link Selector}, from a {@linkplain
+ * GifSource#probe(okio.BufferedSource) probe} of the GIF.
+ */
+public final class GifStrategy {
+
+  public enum Mode {
+    /** Keep every frame of the first loop in memory, and replay later loops from it. */
+    CACHE_ALL,
+
+    /** Keep the compressed data of the first loop, and decode it again for later loops. */
+    REDECODE,
+
+    /**
+     * Keep nothing: decode frames as they arrive and play once, or loop from the recording on
+     * disk if the decoder has a {@linkplain GifDecoder.Builder#recordingDirectory recording
+     * directory}.
+     */
+    STREAM
+  }
+
+  /** Chooses a strategy for each animation. */
+  public interface Selector {
+    /**
+     * Choose how to play the animation described by {@code index}, which the request alone would
+     * decode at {@code sampleSize}. The index only covers as much of the GIF as the decoder
+     * looked ahead to, so it is not {@linkplain GifIndex#isComplete() complete} for a long GIF
+     * or a download in progress.
+     */
+    GifStrategy select(GifIndex index, int sampleSize);
+  }
+
+  /** Notified of the strategy chosen for each animation, for tuning a {@link Selector}. */
+  public interface Listener {
+    void onStrategy(GifIndex index, GifStrategy strategy);
+  }
+
+  private final Mode mode;
+  private final int sampleSize;
+
+  public GifStrategy(Mode mode, int sampleSize) {
+    if (mode == null) throw new NullPointerException("mode == null");
+    if (sampleSize < 1) throw new IllegalArgumentException("sampleSize < 1: " + sampleSize);
+    this.mode = mode;
+    this.sampleSize = sampleSize;
+  }
+
+  public Mode mode() {
+    return mode;
+  }
+
+  public int sampleSize() {
+    return sampleSize;
+  }
+
+  /**
+   * Returns a selector which keeps each animation within {@code maxBytes} of memory. Animations
+   * whose decoded frames all fit are cached whole. Otherwise they are decoded again on each loop
+   * if their compressed data fits alongside the frame being decoded, and streamed if not.
+   * Animations whose index is not complete are never cached whole, since their size is unknown,
+   * but are decoded again on each loop unless the data indexed so far is already too large. An
+   * animation whose canvas and emitted frame alone don't fit is downsampled until they do.
+   */
+  public static Selector forBudget(final long maxBytes) {
+    if (maxBytes < 0) throw new IllegalArgumentException("maxBytes < 0: " + maxBytes);
+    return (index, sampleSize) -> {
+      final GifSource.Header header = index.header();
+      // Decoding needs the canvas plus a copy for each emitted image.
+      while (frameBytes(header, sampleSize) * 2 > maxBytes
+          && (header.width > sampleSize || header.height > sampleSize)) {
+        sampleSize *= 2;
+      }
+
+      final Mode mode;
+      if (index.isComplete() && index.frameCount() > 0
+          && index.decodedByteCount(sampleSize) <= maxBytes) {
+        mode = Mode.CACHE_ALL;
+      } else if (index.byteCount() + frameBytes(header, sampleSize) * 2 <= maxBytes) {
+        mode = Mode.REDECODE;
+      } else {
+        mode = Mode.STREAM;
+      }
+      return new GifStrategy(mode, sampleSize);
+    };
+  }
+
+  private static long frameBytes(GifSource.Header header, int sampleSize) {
+    final long width = (header.width + sampleSize - 1) / sampleSize;
+    final long height = (header.height + sampleSize - 1) / sampleSize;
+    return width * height * 4;
+  }
+
+  @Override public boolean equals(Object o) {
+    if (o == this) return true;
+    if (!(o instanceof GifStrategy)) return false;
+    final GifStrategy other = (GifStrategy) o;
+    return mode == other.mode && sampleSize == other.sampleSize;
+  }
+
+  @Override public int hashCode() {
+    return mode.hashCode() * 31 + sampleSize;
+  }
+
+  @Override public String toString() {
+    return "GifStrategy{mode=" + mode + ", sampleSize=" + sampleSize + "}";
+  }
+}
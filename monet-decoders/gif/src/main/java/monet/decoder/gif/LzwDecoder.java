@@ -0,0 +1,405 @@
+package monet.decoder.gif;
+
+import java.io.IOException;
+import java.util.Arrays;
+import okio.BufferedSource;
+
+/**
+ * Decodes the LZW-compressed image data of a single GIF frame into color table indices.
+ * <p>
+ * Compressed data is consumed one data sub-block at a time: each sub-block is copied into a local
+ * array in a single read and codes are served from a 32-bit accumulator, so the inner loop
+ * never calls back into the source. Decoder state is kept between sub-blocks, which means data may
+ * also be {@linkplain #decode(byte[], int, int) pushed} as it becomes available.
+ * <p>
+ * When the indices are only going to be looked up in a color table and written out in order, the
+ * decoder can instead write the colors {@linkplain #start(int, int[], int[], int) directly} into
+ * an ARGB array. Because every dictionary string is copied forward from earlier output, this works
+ * on colors just as it does on indices, and saves both the index buffer and a second pass.
+ */
+final class LzwDecoder {
+
+  // Decoding parameters
+  private static final int MAX_STACK_SIZE = 4096;
+  private static final int MAX_DATA_SIZE = 11;
+  private static final int MAX_BLOCK_SIZE = 255;
+
+  // Work buffers
+  private final byte[] block = new byte[MAX_BLOCK_SIZE];
+  private final int[] codeOffset = new int[MAX_STACK_SIZE];
+  private final short[] codeLength = new short[MAX_STACK_SIZE];
+
+  // Output
+  private byte[] out;
+  private int[] pixels;
+  private int[] colors;
+  private int count;
+  private int pos;
+
+  // Decoder state
+  private int dataSize;
+  private int clearCode;
+  private int endCode;
+  private int available;
+  private int oldCode;
+  private int oldPos;
+  private int oldLength;
+  private int codeSize;
+  private int codeMask;
+  private int datum;
+  private int bits;
+  private boolean finished;
+
+  /**
+   * Prepare to decode {@code count} indices into {@code out} using the LZW minimum code size
+   * {@code dataSize}.
+   */
+  void start(int dataSize, byte[] out, int count) {
+    this.out = out;
+    this.pixels = null;
+    this.colors = null;
+    start(dataSize, count);
+  }
+
+  /**
+   * Prepare to decode {@code count} pixels into {@code pixels}, as the colors in {@code colors}
+   * which the indices refer to, using the LZW minimum code size {@code dataSize}.
+   */
+  void start(int dataSize, int[] pixels, int[] colors, int count) {
+    this.out = null;
+    this.pixels = pixels;
+    this.colors = colors;
+    start(dataSize, count);
+  }
+
+  private void start(int dataSize, int count) {
+    this.count = count;
+    this.pos = 0;
+    this.dataSize = dataSize;
+    this.clearCode = 1 << dataSize;
+    this.endCode = clearCode + 1;
+    this.datum = 0;
+    this.bits = 0;
+    this.finished = count == 0 || dataSize > MAX_DATA_SIZE;
+    reset();
+  }
+
+  /**
+   * Read the LZW minimum code size and all data sub-blocks of a frame from {@code source}, up to
+   * and including the block terminator, decoding {@code count} indices into {@code out}.
+   */
+  void read(BufferedSource source, byte[] out, int count) throws IOException {
+    start(source.readByte() & 0xff, out, count);
+    read(source);
+  }
+
+  /**
+   * Read the LZW minimum code size and all data sub-blocks of a frame from {@code source}, up to
+   * and including the block terminator, decoding {@code count} pixels into {@code pixels} as
+   * colors from {@code colors}.
+   */
+  void read(BufferedSource source, int[] pixels, int[] colors, int count) throws IOException {
+    start(source.readByte() & 0xff, pixels, colors, count);
+    read(source);
+  }
+
+  private void read(BufferedSource source) throws IOException {
+    int size;
+    while ((size = source.readByte() & 0xff) != 0) {
+      decode(source, size);
+    }
+
+    finish();
+  }
+
+  /** Read and decode a single data sub-block of {@code size} bytes from {@code source}. */
+  void decode(BufferedSource source, int size) throws IOException {
+    if (finished) {
+      // Skip padding and any trailing sub-blocks.
+      source.skip(size);
+      return;
+    }
+    readBlock(source, size);
+    decode(block, 0, size);
+  }
+
+  private void readBlock(BufferedSource source, int size) throws IOException {
+    source.require(size);
+    for (int offset = 0; offset < size; ) {
+      offset += source.read(block, offset, size - offset);
+    }
+  }
+
+  /** Decode a single data sub-block. */
+  void decode(byte[] data, int offset, int length) {
+    if (finished) return;
+    if (pixels != null) {
+      decodeColors(data, offset, length);
+      return;
+    }
+
+    // Every string in the dictionary is the previous string plus one byte, which means it has
+    // already been written to the output. Rather than chasing prefix links, record where each
+    // code's string begins in the output and how long it is, then copy it forward.
+    final byte[] out = this.out;
+    final int[] offsets = codeOffset;
+    final short[] lengths = codeLength;
+    final int count = this.count;
+    final int clearCode = this.clearCode;
+    final int endCode = this.endCode;
+
+    int available = this.available;
+    int oldCode = this.oldCode;
+    int oldPos = this.oldPos;
+    int oldLength = this.oldLength;
+    int codeSize = this.codeSize;
+    int codeMask = this.codeMask;
+    int datum = this.datum;
+    int bits = this.bits;
+    int i = this.pos;
+    int code;
+
+    final int end = offset + length;
+    decode:
+    for (int p = offset; p < end; p++) {
+      datum |= (data[p] & 0xff) << bits;
+      bits += 8;
+
+      while (bits >= codeSize) {
+        // Get the next code.
+        code = datum & codeMask;
+        datum >>= codeSize;
+        bits -= codeSize;
+
+        // Interpret the code.
+        if (code == clearCode) {
+          // Reset decoder.
+          codeSize = dataSize + 1;
+          codeMask = (1 << codeSize) - 1;
+          available = clearCode + 2;
+          oldCode = -1;
+          continue;
+        }
+
+        if (code == endCode || code > available) {
+          finished = true;
+          break decode;
+        }
+
+        final int pos = i;
+        final int codeLength;
+
+        if (code < clearCode) {
+          out[i++] = (byte) code;
+          codeLength = 1;
+        } else if (oldCode == -1) {
+          // The first code after a clear must be a root.
+          finished = true;
+          break decode;
+        } else if (code < available) {
+          codeLength = lengths[code];
+          i += copy(out, offsets[code], pos, Math.min(codeLength, count - pos));
+        } else {
+          // The code is not in the dictionary yet: it is the previous string plus its own first
+          // byte.
+          codeLength = oldLength + 1;
+          i += copy(out, oldPos, pos, Math.min(oldLength, count - pos));
+          if (i < count) out[i++] = out[oldPos];
+        }
+
+        if (oldCode != -1 && available < MAX_STACK_SIZE) {
+          // The new entry is the previous string followed by the first byte of this one, which
+          // is exactly where they sit next to each other in the output.
+          offsets[available] = oldPos;
+          lengths[available] = (short) (oldLength + 1);
+          available++;
+
+          if (((available & codeMask) == 0) && (available < MAX_STACK_SIZE)) {
+            codeSize++;
+            codeMask += available;
+          }
+        }
+
+        oldCode = code;
+        oldPos = pos;
+        oldLength = codeLength;
+
+        if (i >= count) {
+          finished = true;
+          break decode;
+        }
+      }
+    }
+
+    this.available = available;
+    this.oldCode = oldCode;
+    this.oldPos = oldPos;
+    this.oldLength = oldLength;
+    this.codeSize = codeSize;
+    this.codeMask = codeMask;
+    this.datum = datum;
+    this.bits = bits;
+    this.pos = i;
+  }
+
+  /**
+   * The same as {@link #decode(byte[], int, int)}, but writing colors to {@link #pixels}. Kept
+   * separate so that neither inner loop has to check which output it writes to.
+   */
+  private void decodeColors(byte[] data, int offset, int length) {
+    final int[] out = this.pixels;
+    final int[] colors = this.colors;
+    final int[] offsets = codeOffset;
+    final short[] lengths = codeLength;
+    final int count = this.count;
+    final int clearCode = this.clearCode;
+    final int endCode = this.endCode;
+
+    int available = this.available;
+    int oldCode = this.oldCode;
+    int oldPos = this.oldPos;
+    int oldLength = this.oldLength;
+    int codeSize = this.codeSize;
+    int codeMask = this.codeMask;
+    int datum = this.datum;
+    int bits = this.bits;
+    int i = this.pos;
+    int code;
+
+    final int end = offset + length;
+    decode:
+    for (int p = offset; p < end; p++) {
+      datum |= (data[p] & 0xff) << bits;
+      bits += 8;
+
+      while (bits >= codeSize) {
+        code = datum & codeMask;
+        datum >>= codeSize;
+        bits -= codeSize;
+
+        if (code == clearCode) {
+          codeSize = dataSize + 1;
+          codeMask = (1 << codeSize) - 1;
+          available = clearCode + 2;
+          oldCode = -1;
+          continue;
+        }
+
+        if (code == endCode || code > available) {
+          finished = true;
+          break decode;
+        }
+
+        final int pos = i;
+        final int codeLength;
+
+        if (code < clearCode) {
+          out[i++] = colors[code];
+          codeLength = 1;
+        } else if (oldCode == -1) {
+          finished = true;
+          break decode;
+        } else if (code < available) {
+          codeLength = lengths[code];
+          i += copy(out, offsets[code], pos, Math.min(codeLength, count - pos));
+        } else {
+          codeLength = oldLength + 1;
+          i += copy(out, oldPos, pos, Math.min(oldLength, count - pos));
+          if (i < count) out[i++] = out[oldPos];
+        }
+
+        if (oldCode != -1 && available < MAX_STACK_SIZE) {
+          offsets[available] = oldPos;
+          lengths[available] = (short) (oldLength + 1);
+          available++;
+
+          if (((available & codeMask) == 0) && (available < MAX_STACK_SIZE)) {
+            codeSize++;
+            codeMask += available;
+          }
+        }
+
+        oldCode = code;
+        oldPos = pos;
+        oldLength = codeLength;
+
+        if (i >= count) {
+          finished = true;
+          break decode;
+        }
+      }
+    }
+
+    this.available = available;
+    this.oldCode = oldCode;
+    this.oldPos = oldPos;
+    this.oldLength = oldLength;
+    this.codeSize = codeSize;
+    this.codeMask = codeMask;
+    this.datum = datum;
+    this.bits = bits;
+    this.pos = i;
+  }
+
+  /** Clear any pixels missing from the decoded data. */
+  void finish() {
+    finished = true;
+    if (pos < count) {
+      if (pixels != null) {
+        Arrays.fill(pixels, pos, count, colors[0]);
+      } else {
+        Arrays.fill(out, pos, count, (byte) 0);
+      }
+      pos = count;
+    }
+  }
+
+  /** Drop the references to the last output and color table, so that they can be collected. */
+  void clear() {
+    out = null;
+    pixels = null;
+    colors = null;
+    finished = true;
+  }
+
+  /** Returns true once the end code is seen or all indices have been decoded. */
+  boolean finished() {
+    return finished;
+  }
+
+  /** Returns the number of indices decoded so far. */
+  int position() {
+    return pos;
+  }
+
+  private void reset() {
+    codeSize = dataSize + 1;
+    codeMask = (1 << codeSize) - 1;
+    available = clearCode + 2;
+    oldCode = -1;
+  }
+
+  /** Copies {@code length} colors of earlier output to {@code dst}; returns {@code length}. */
+  private static int copy(int[] out, int src, int dst, int length) {
+    if (length > 8) {
+      System.arraycopy(out, src, out, dst, length);
+    } else {
+      for (int n = 0; n < length; n++) {
+        out[dst + n] = out[src + n];
+      }
+    }
+    return length;
+  }
+
+  /** Copies {@code length} bytes of earlier output to {@code dst}; returns {@code length}. */
+  private static int copy(byte[] out, int src, int dst, int length) {
+    if (length > 8) {
+      System.arraycopy(out, src, out, dst, length);
+    } else {
+      for (int n = 0; n < length; n++) {
+        out[dst + n] = out[src + n];
+      }
+    }
+    return length;
+  }
+}
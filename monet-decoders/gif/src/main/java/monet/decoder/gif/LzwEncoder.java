@@ -0,0 +1,119 @@
+package monet.decoder.gif;
+
+import java.io.IOException;
+import java.util.Arrays;
+import okio.BufferedSink;
+
+/**
+ * Compresses the color table indices of a single GIF frame, as {@link LzwDecoder} reads them.
+ * <p>
+ * The dictionary maps each string to its code through an open-addressed hash of its prefix code
+ * and last index, so extending the current string costs one lookup. Once all 4096 codes are
+ * used, a clear code starts a new dictionary. Codes are packed into data sub-blocks as they are
+ * produced, so only one sub-block is ever held in memory.
+ */
+final class LzwEncoder {
+
+  // Encoding parameters
+  private static final int MAX_CODES = 4096;
+  private static final int MAX_CODE_SIZE = 12;
+  private static final int MAX_BLOCK_SIZE = 255;
+
+  // Twice the number of codes keeps probe chains short.
+  private static final int TABLE_BITS = 13;
+  private static final int TABLE_SIZE = 1 << TABLE_BITS;
+
+  // Dictionary, keyed by (prefix << 8 | index) + 1 so that zero marks an empty slot.
+  private final int[] keys = new int[TABLE_SIZE];
+  private final short[] codes = new short[TABLE_SIZE];
+
+  // Output
+  private final byte[] block = new byte[MAX_BLOCK_SIZE];
+  private int blockSize;
+  private int datum;
+  private int bits;
+
+  /**
+   * Write the first {@code count} of {@code indices} to {@code sink} as image data: the LZW
+   * minimum code size {@code dataSize}, then data sub-blocks ending with a block terminator.
+   */
+  void encode(BufferedSink sink, int dataSize, byte[] indices, int count) throws IOException {
+    final int clearCode = 1 << dataSize;
+    final int endCode = clearCode + 1;
+
+    blockSize = 0;
+    datum = 0;
+    bits = 0;
+    sink.writeByte(dataSize);
+
+    Arrays.fill(keys, 0);
+    int available = clearCode + 2;
+    int codeSize = dataSize + 1;
+    write(sink, clearCode, codeSize);
+
+    if (count > 0) {
+      int prefix = indices[0] & 0xff;
+      for (int i = 1; i < count; i++) {
+        final int index = indices[i] & 0xff;
+        final int key = (prefix << 8 | index) + 1;
+        int slot = (key * 0x9e3779b9) >>> (32 - TABLE_BITS);
+        while (keys[slot] != 0 && keys[slot] != key) {
+          slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        if (keys[slot] == key) {
+          prefix = codes[slot];
+          continue;
+        }
+
+        write(sink, prefix, codeSize);
+        if (available < MAX_CODES) {
+          keys[slot] = key;
+          codes[slot] = (short) available++;
+          // The decoder widens its codes one code later, once it has seen this entry's string.
+          if (available > 1 << codeSize && codeSize < MAX_CODE_SIZE) {
+            codeSize++;
+          }
+        } else {
+          write(sink, clearCode, codeSize);
+          Arrays.fill(keys, 0);
+          available = clearCode + 2;
+          codeSize = dataSize + 1;
+        }
+        prefix = index;
+      }
+      write(sink, prefix, codeSize);
+
+      // Reading the last code completes the previous entry, which may widen the end code.
+      if (available == 1 << codeSize && codeSize < MAX_CODE_SIZE) {
+        codeSize++;
+      }
+    }
+    write(sink, endCode, codeSize);
+
+    if (bits > 0) {
+      writeByte(sink, datum);
+    }
+    if (blockSize > 0) {
+      sink.writeByte(blockSize).write(block, 0, blockSize);
+    }
+    sink.writeByte(0);
+  }
+
+  private void write(BufferedSink sink, int code, int codeSize) throws IOException {
+    datum |= code << bits;
+    bits += codeSize;
+    while (bits >= 8) {
+      writeByte(sink, datum);
+      datum >>>= 8;
+      bits -= 8;
+    }
+  }
+
+  private void writeByte(BufferedSink sink, int b) throws IOException {
+    block[blockSize++] = (byte) b;
+    if (blockSize == MAX_BLOCK_SIZE) {
+      sink.writeByte(MAX_BLOCK_SIZE).write(block);
+      blockSize = 0;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package monet.decoder.gif;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+
+/**
+ * Converts composited frames back to color table indices, for emitting {@link
+ * monet.IndexedImage}s and for {@linkplain GifSink encoding}.
+ * <p>
+ * A composited canvas can mix colors from several color tables, as well as transparent pixels, so
+ * the frame's own color table doesn't always describe it. Instead the palette collects the
+ * distinct colors it sees, and keeps them from one frame to the next so that consecutive frames
+ * usually share the same color table array. Frames with more than 256 colors can't be indexed.
+ */
+final class Palette {
+  private static final int MAX_COLORS = 256;
+
+  // Open-addressed map from color to index. Twice the maximum size keeps probe chains short.
+  private static final int SLOTS = MAX_COLORS * 2;
+  private final int[] keys = new int[SLOTS];
+  private final short[] values = new short[SLOTS];
+
+  private final int[] colors = new int[MAX_COLORS];
+  private int count;
+  @Nullable private int[] colorTable;
+
+  Palette() {
+    Arrays.fill(values, (short) -1);
+  }
+
+  /**
+   * Returns the indices of the {@code width} by {@code height} region of {@code pixels} starting
+   * at {@code offset}, or null if there are too many colors. Indices refer to {@link
+   * #colorTable()}.
+   */
+  @Nullable ByteBuffer index(int[] pixels, int offset, int stride, int width, int height) {
+    final ByteBuffer indices = ByteBuffer.allocate(width * height);
+    final boolean kept = count > 0;
+    if (index(pixels, offset, stride, width, height, indices.array())) return indices;
+
+    // The colors kept from earlier frames may be what filled the palette, so start afresh; only
+    // a region with too many colors of its own can't be indexed.
+    clear();
+    if (kept && index(pixels, offset, stride, width, height, indices.array())) return indices;
+    clear();
+    return null;
+  }
+
+  private boolean index(int[] pixels, int offset, int stride, int width, int height,
+      byte[] array) {
+    int i = 0;
+    for (int y = 0; y < height; y++) {
+      int src = offset + y * stride;
+      int last = 0;
+      int lastIndex = -1;
+      for (int x = 0; x < width; x++) {
+        final int color = pixels[src++];
+        // Runs of one color are common, so skip the lookup for them.
+        if (color != last || lastIndex < 0) {
+          lastIndex = indexOf(color);
+          if (lastIndex < 0) return false;
+          last = color;
+        }
+        array[i++] = (byte) lastIndex;
+      }
+    }
+    return true;
+  }
+
+  /** The colors seen so far. The same array is returned until a new color is added. */
+  int[] colorTable() {
+    if (colorTable == null) {
+      colorTable = Arrays.copyOf(colors, count);
+    }
+    return colorTable;
+  }
+
+  /** The number of colors seen so far. */
+  int size() {
+    return count;
+  }
+
+  /** Returns the index of {@code color}, adding it if it's new, or -1 if there's no room. */
+  int indexOf(int color) {
+    int slot = (color * 0x9e3779b9) >>> 23;
+    while (true) {
+      final int value = values[slot];
+      if (value < 0) break;
+      if (keys[slot] == color) return value;
+      slot = (slot + 1) & (SLOTS - 1);
+    }
+
+    if (count == MAX_COLORS) return -1;
+    keys[slot] = color;
+    values[slot] = (short) count;
+    colors[count] = color;
+    colorTable = null;
+    return count++;
+  }
+
+  /** Forget all colors, so that a frame with too many doesn't stop later frames being indexed. */
+  void clear() {
+    Arrays.fill(values, (short) -1);
+    count = 0;
+    colorTable = null;
+  }
+}
@@ -0,0 +1,124 @@
+package monet.decoder.gif;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import javax.annotation.Nullable;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+import static monet.internal.Util.closeQuietly;
+
+/**
+ * A copy of a GIF's compressed data, made while its first loop is read, which later loops decode
+ * again.
+ */
+abstract class Recording implements Closeable {
+
+  // How much a relay reads from upstream at a time, and keeps in memory for readers keeping up.
+  private static final long RELAY_BUFFER_SIZE = 64 * 1024;
+
+  /** Record {@code upstream} in memory. */
+  static Recording inMemory(Source upstream) {
+    return new MemoryRecording(upstream);
+  }
+
+  /**
+   * Record {@code upstream} to a temporary file in {@code directory}, which is deleted when the
+   * recording is closed.
+   */
+  static Recording inDirectory(Source upstream, File directory) throws IOException {
+    final File file = File.createTempFile("monet-gif", ".relay", directory);
+    try {
+      return new RelayRecording(upstream, file);
+    } catch (IOException e) {
+      file.delete();
+      throw e;
+    }
+  }
+
+  /** Returns the source for the first loop, which records everything read from it. */
+  abstract BufferedSource source();
+
+  /**
+   * Returns a new source which reads the recording again from the start. The source returned by
+   * the previous call, or by {@link #source()}, must still be open.
+   */
+  abstract BufferedSource replay() throws IOException;
+
+  /** Close upstream and discard the recording. Sources already returned are not closed. */
+  @Override public abstract void close();
+
+  private static final class MemoryRecording extends Recording {
+    private final Source upstream;
+    private final Buffer recording = new Buffer();
+    private final BufferedSource source;
+
+    MemoryRecording(Source upstream) {
+      this.upstream = upstream;
+      this.source = Okio.buffer(new ForwardingSource(upstream) {
+        @Override public long read(Buffer sink, long byteCount) throws IOException {
+          final long read = super.read(sink, byteCount);
+          if (read > 0) sink.copyTo(recording, sink.size() - read, read);
+          return read;
+        }
+      });
+    }
+
+    @Override BufferedSource source() {
+      return source;
+    }
+
+    @Override BufferedSource replay() {
+      return recording.clone();
+    }
+
+    @Override public void close() {
+      closeQuietly(upstream);
+      recording.clear();
+    }
+  }
+
+  /**
+   * Tees upstream to a file through a {@link Relay}. Later loops read the file, so only the frame
+   * being decoded is held in memory, and upstream is closed as soon as the first loop ends.
+   */
+  private static final class RelayRecording extends Recording {
+    private final Source upstream;
+    private final File file;
+    private final Relay relay;
+    private final BufferedSource source;
+    @Nullable private BufferedSource first;
+
+    RelayRecording(Source upstream, File file) throws IOException {
+      this.upstream = upstream;
+      this.file = file;
+      this.relay = Relay.edit(file, upstream, ByteString.EMPTY, RELAY_BUFFER_SIZE);
+      this.source = Okio.buffer(relay.newSource());
+      this.first = source;
+    }
+
+    @Override BufferedSource source() {
+      return source;
+    }
+
+    @Override BufferedSource replay() throws IOException {
+      if (first != null) {
+        // Read past the trailer to the end of upstream, which commits the file and closes it.
+        first.readAll(Okio.blackhole());
+        first = null;
+      }
+      // The previous source is still open, so the relay can't have released the file yet.
+      return Okio.buffer(relay.newSource());
+    }
+
+    @Override public void close() {
+      closeQuietly(upstream);
+      file.delete();
+    }
+  }
+}
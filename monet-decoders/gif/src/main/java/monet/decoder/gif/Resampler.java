@@ -0,0 +1,135 @@
+package monet.decoder.gif;
+
+import android.graphics.Rect;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import monet.BufferImage;
+import monet.Image;
+import monet.IndexedImage;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Derives smaller sizes of each frame decoded at one sample size, for decoding a GIF at several
+ * sizes in one pass.
+ * <p>
+ * A canvas pixel at sample size {@code s} shows the GIF pixel at {@code s} times its coordinates,
+ * so a pixel at a larger sample size is copied from the composited pixel showing the same GIF
+ * pixel, or the nearest one before it. Delta frames stay delta frames: only the pixels sampled
+ * from within the dirty region can have changed.
+ */
+final class Resampler implements Subscriber<Image> {
+  private final Subscriber<? super List<Image>> downstream;
+  private final int width;
+  private final int height;
+  private final int[] sampleSizes;
+  private int sampleSize = 1;
+
+  /**
+   * Emit lists of one image for each of {@code sampleSizes} to {@code downstream}. Sample sizes
+   * below the one frames are decoded at are raised to it.
+   */
+  Resampler(Subscriber<? super List<Image>> downstream, GifSource.Header header,
+      int[] sampleSizes) {
+    this.downstream = downstream;
+    this.width = header.width;
+    this.height = header.height;
+    this.sampleSizes = sampleSizes;
+  }
+
+  /** Set the sample size of the images to be resampled. */
+  void setSampleSize(int sampleSize) {
+    this.sampleSize = sampleSize;
+  }
+
+  @Override public void onSubscribe(Subscription s) {
+    downstream.onSubscribe(s);
+  }
+
+  @Override public void onNext(Image image) {
+    final List<Image> images = new ArrayList<>(sampleSizes.length);
+    for (int s : sampleSizes) {
+      images.add(s <= sampleSize ? image : resample(image, s));
+    }
+    downstream.onNext(images);
+  }
+
+  @Override public void onError(Throwable t) {
+    downstream.onError(t);
+  }
+
+  @Override public void onComplete() {
+    downstream.onComplete();
+  }
+
+  private Image resample(Image image, int s) {
+    final int b = sampleSize;
+    final int canvasWidth = (width + b - 1) / b;
+    final int canvasHeight = (height + b - 1) / b;
+    final Rect bounds = image.dirtyBounds();
+    final Rect dirty = bounds != null ? bounds : new Rect(0, 0, canvasWidth, canvasHeight);
+
+    // Delta images hold only their dirty region; whole images start at the canvas origin.
+    final boolean whole = image.width() == canvasWidth && image.height() == canvasHeight;
+    final int originX = whole ? 0 : dirty.left;
+    final int originY = whole ? 0 : dirty.top;
+
+    // The pixels at the new sample size which are copied from within the dirty region.
+    final int newWidth = (width + s - 1) / s;
+    final int newHeight = (height + s - 1) / s;
+    final int dirtyLeft = Math.min(ceil(dirty.left * b, s), newWidth);
+    final int dirtyTop = Math.min(ceil(dirty.top * b, s), newHeight);
+    final int dirtyRight = Math.min(ceil(dirty.right * b, s), newWidth);
+    final int dirtyBottom = Math.min(ceil(dirty.bottom * b, s), newHeight);
+    final Rect newDirty = dirtyLeft < dirtyRight && dirtyTop < dirtyBottom
+        ? new Rect(dirtyLeft, dirtyTop, dirtyRight, dirtyBottom)
+        : new Rect();
+
+    final int left = whole ? 0 : newDirty.left;
+    final int top = whole ? 0 : newDirty.top;
+    final int w = whole ? newWidth : newDirty.width();
+    final int h = whole ? newHeight : newDirty.height();
+    final int stride = image.width();
+
+    // Columns are the same on every row, so find them once.
+    final int[] columns = new int[w];
+    for (int x = 0; x < w; x++) {
+      columns[x] = (left + x) * s / b - originX;
+    }
+
+    if (image instanceof IndexedImage) {
+      final ByteBuffer source = ((IndexedImage) image).indices();
+      final int start = source.position();
+      final ByteBuffer indices = ByteBuffer.allocate(w * h);
+      final byte[] array = indices.array();
+      int i = 0;
+      for (int y = 0; y < h; y++) {
+        final int row = start + ((top + y) * s / b - originY) * stride;
+        for (int x = 0; x < w; x++) {
+          array[i++] = source.get(row + columns[x]);
+        }
+      }
+      return new IndexedImage(w, h, image.frameDelay(), indices,
+          ((IndexedImage) image).colorTable(), newDirty);
+    }
+
+    final int[] pixels = image.asPixels();
+    final int[] row = new int[w];
+    final ByteBuffer buffer = ByteBuffer.allocate(w * h * 4);
+    final IntBuffer ints = buffer.asIntBuffer();
+    for (int y = 0; y < h; y++) {
+      final int src = ((top + y) * s / b - originY) * stride;
+      for (int x = 0; x < w; x++) {
+        row[x] = pixels[src + columns[x]];
+      }
+      ints.put(row);
+    }
+    return new BufferImage(w, h, image.frameDelay(), buffer, newDirty);
+  }
+
+  private static int ceil(int value, int divisor) {
+    return (value + divisor - 1) / divisor;
+  }
+}
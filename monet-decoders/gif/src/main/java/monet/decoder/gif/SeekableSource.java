@@ -0,0 +1,44 @@
+package monet.decoder.gif;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * GIF data which can be read again from any byte offset. A {@link GifSource} created from a
+ * seekable source can {@linkplain GifSource#seekToFrame(int) seek} backwards as well as forwards.
+ */
+public abstract class SeekableSource {
+
+  /** Returns a new source of GIF data which starts at {@code offset}. The caller must close it. */
+  public abstract Source open(long offset) throws IOException;
+
+  /** GIF data read from {@code file}. */
+  public static SeekableSource of(final File file) {
+    return new SeekableSource() {
+      @Override public Source open(long offset) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+          in.getChannel().position(offset);
+        } catch (IOException e) {
+          in.close();
+          throw e;
+        }
+        return Okio.source(in);
+      }
+    };
+  }
+
+  /** GIF data held in {@code bytes}, which must not be modified. */
+  public static SeekableSource of(final byte[] bytes) {
+    return new SeekableSource() {
+      @Override public Source open(long offset) {
+        final int start = (int) Math.min(offset, bytes.length);
+        return Okio.source(new ByteArrayInputStream(bytes, start, bytes.length - start));
+      }
+    };
+  }
+}
@@ -0,0 +1,222 @@
+package monet.decoder.gif;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import okio.Buffer;
+import org.junit.Test;
+
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_BACKGROUND;
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_LEAVE;
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_RESTORE;
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_UNKNOWN;
+import static org.junit.Assert.assertEquals;
+
+public class CompositorTest {
+  private static final int[] COLORS = {0x000000, 0xff0000, 0x00ff00, 0x0000ff};
+  private static final int BLACK = 0xff000000;
+  private static final int RED = 0xffff0000;
+  private static final int GREEN = 0xff00ff00;
+  private static final int BLUE = 0xff0000ff;
+
+  @Test
+  public void fillsUncoveredCanvasWithBackground() throws IOException {
+    byte[] gif = new GifBuilder(3, 2, COLORS, 2)
+        .frame(1, 0, 1, 1, 2, new byte[] {1})
+        .build();
+
+    assertFrames(gif, 1, new int[] {
+        GREEN, RED, GREEN,
+        GREEN, GREEN, GREEN});
+  }
+
+  @Test
+  public void leavesTransparentPixels() throws IOException {
+    byte[] gif = new GifBuilder(2, 1, COLORS, 2)
+        .frame(0, 0, 2, 1, 2, new byte[] {1, 1})
+        .transparentIndex(0)
+        .frame(0, 0, 2, 1, 2, new byte[] {0, 3})
+        .build();
+
+    assertFrames(gif, 1,
+        new int[] {RED, RED},
+        new int[] {RED, BLUE});
+  }
+
+  @Test
+  public void disposesToBackground() throws IOException {
+    byte[] gif = new GifBuilder(2, 2, COLORS, 3)
+        .frame(0, 0, 2, 2, 2, new byte[] {1, 1, 1, 1})
+        .disposal(DISPOSAL_METHOD_BACKGROUND)
+        .frame(1, 1, 1, 1, 2, new byte[] {0})
+        .frame(0, 0, 1, 1, 2, new byte[] {2})
+        .build();
+
+    assertFrames(gif, 1,
+        new int[] {RED, RED, RED, RED},
+        new int[] {BLUE, BLUE, BLUE, BLACK},
+        new int[] {GREEN, BLUE, BLUE, BLACK});
+  }
+
+  @Test
+  public void restoresLastLeftFrame() throws IOException {
+    byte[] gif = new GifBuilder(2, 1, COLORS, 0)
+        .frame(0, 0, 1, 1, 2, new byte[] {1})
+        .disposal(DISPOSAL_METHOD_BACKGROUND)
+        .frame(1, 0, 1, 1, 2, new byte[] {2})
+        .disposal(DISPOSAL_METHOD_RESTORE)
+        .frame(1, 0, 1, 1, 2, new byte[] {3})
+        .disposal(DISPOSAL_METHOD_RESTORE)
+        .frame(0, 0, 1, 1, 2, new byte[] {2})
+        .build();
+
+    assertFrames(gif, 1,
+        new int[] {RED, BLACK},
+        new int[] {BLACK, GREEN},
+        new int[] {RED, BLUE},
+        new int[] {GREEN, BLACK});
+  }
+
+  @Test
+  public void restoresBackgroundWithoutLeftFrame() throws IOException {
+    byte[] gif = new GifBuilder(2, 1, COLORS, 1)
+        .disposal(DISPOSAL_METHOD_BACKGROUND)
+        .frame(0, 0, 2, 1, 2, new byte[] {2, 2})
+        .disposal(DISPOSAL_METHOD_RESTORE)
+        .frame(0, 0, 1, 1, 2, new byte[] {3})
+        .build();
+
+    assertFrames(gif, 1,
+        new int[] {GREEN, GREEN},
+        new int[] {BLUE, RED});
+  }
+
+  @Test
+  public void matchesReferenceForRandomFrames() throws IOException {
+    for (long seed = 0; seed < 20; seed++) {
+      Random random = new Random(seed);
+      int width = 1 + random.nextInt(24);
+      int height = 1 + random.nextInt(24);
+      int[] colors = new int[16];
+      for (int i = 0; i < colors.length; i++) {
+        colors[i] = random.nextInt(0x1000000);
+      }
+      Reference reference = new Reference(width, height, colors, random.nextInt(colors.length));
+      GifBuilder builder = new GifBuilder(width, height, colors, reference.backgroundIndex);
+
+      for (int n = 0; n < 12; n++) {
+        int w = 1 + random.nextInt(width);
+        int h = 1 + random.nextInt(height);
+        int left = random.nextInt(width - w + 1);
+        int top = random.nextInt(height - h + 1);
+        int disposal = random.nextInt(4);
+        int transparentIndex = random.nextBoolean() ? random.nextInt(colors.length) : -1;
+        byte[] indices = new byte[w * h];
+        for (int i = 0; i < indices.length; i++) {
+          indices[i] = (byte) random.nextInt(colors.length);
+        }
+        builder.disposal(disposal)
+            .transparentIndex(transparentIndex)
+            .frame(left, top, w, h, 4, indices);
+        reference.frame(left, top, w, h, disposal, transparentIndex, indices);
+      }
+
+      byte[] gif = builder.build();
+      for (int sampleSize = 1; sampleSize <= 3; sampleSize++) {
+        assertFrames("seed " + seed + " ", gif, sampleSize, reference.sampled(sampleSize));
+      }
+    }
+  }
+
+  private static void assertFrames(byte[] gif, int sampleSize, int[]... expected)
+      throws IOException {
+    assertFrames("", gif, sampleSize, expected);
+  }
+
+  private static void assertFrames(String message, byte[] gif, int sampleSize, int[]... expected)
+      throws IOException {
+    try (GifSource source = new GifSource(new Buffer().write(gif))) {
+      source.setSampleSize(sampleSize);
+      for (int i = 0; i < expected.length; i++) {
+        GifSource.Frame frame = source.readFrame();
+        assertEquals(message + "sample size " + sampleSize + ", frame " + i,
+            hex(expected[i]), hex(frame.pixels()));
+      }
+      assertEquals(message + "end", null, source.readFrame());
+    }
+  }
+
+  private static String hex(int[] pixels) {
+    StringBuilder sb = new StringBuilder();
+    for (int pixel : pixels) {
+      sb.append(Integer.toHexString(pixel)).append(' ');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Composites full-size frames the plain way: each frame starts from a fresh copy of the canvas
+   * its disposal method asks for, and the result of each frame left in place may be restored.
+   */
+  private static final class Reference {
+    final int width;
+    final int height;
+    final int[] colors;
+    final int backgroundIndex;
+    final List<int[]> frames = new ArrayList<>();
+    int[] previous;
+    int[] restore;
+
+    Reference(int width, int height, int[] colors, int backgroundIndex) {
+      this.width = width;
+      this.height = height;
+      this.colors = colors;
+      this.backgroundIndex = backgroundIndex;
+    }
+
+    void frame(int left, int top, int w, int h, int disposal, int transparentIndex,
+        byte[] indices) {
+      int[] canvas;
+      if (disposal == DISPOSAL_METHOD_LEAVE && previous != null) {
+        canvas = previous.clone();
+      } else if (disposal == DISPOSAL_METHOD_RESTORE && restore != null) {
+        canvas = restore.clone();
+      } else {
+        canvas = new int[width * height];
+        Arrays.fill(canvas, 0xff000000 | colors[backgroundIndex]);
+      }
+
+      for (int y = 0; y < h; y++) {
+        for (int x = 0; x < w; x++) {
+          int index = indices[y * w + x] & 0xff;
+          if (index == transparentIndex) continue;
+          canvas[(top + y) * width + left + x] = 0xff000000 | colors[index];
+        }
+      }
+
+      frames.add(canvas);
+      previous = canvas;
+      if (disposal == DISPOSAL_METHOD_LEAVE || disposal == DISPOSAL_METHOD_UNKNOWN) {
+        restore = canvas;
+      }
+    }
+
+    int[][] sampled(int sampleSize) {
+      int w = (width + sampleSize - 1) / sampleSize;
+      int h = (height + sampleSize - 1) / sampleSize;
+      int[][] sampled = new int[frames.size()][];
+      for (int i = 0; i < sampled.length; i++) {
+        int[] frame = frames.get(i);
+        sampled[i] = new int[w * h];
+        for (int y = 0; y < h; y++) {
+          for (int x = 0; x < w; x++) {
+            sampled[i][y * w + x] = frame[y * sampleSize * width + x * sampleSize];
+          }
+        }
+      }
+      return sampled;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package monet.decoder.gif;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import okio.Buffer;
+import org.junit.Test;
+
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_BACKGROUND;
+import static monet.decoder.gif.GifSource.DISPOSAL_METHOD_RESTORE;
+import static org.junit.Assert.assertEquals;
+
+/** Frames which cover the canvas are decoded straight onto it, skipping the index buffer. */
+public class CoveringFrameTest {
+  private static final int[] COLORS = {0x000000, 0xff0000, 0x00ff00, 0x0000ff};
+
+  @Test
+  public void decodesCoveringFramesLikeOtherFrames() throws IOException {
+    int width = 8;
+    int height = 6;
+    Random random = new Random(0);
+    byte[] gif = new GifBuilder(width, height, COLORS, 2)
+        .frame(0, 0, width, height, 2, indices(random, width * height))
+        // Partly transparent, so it must be composited.
+        .transparentIndex(0)
+        .frame(0, 0, width, height, 2, indices(random, width * height))
+        .frame(2, 1, 3, 3, 2, indices(random, 3 * 3))
+        .disposal(DISPOSAL_METHOD_RESTORE)
+        .frame(0, 0, width, height, 2, indices(random, width * height))
+        .disposal(DISPOSAL_METHOD_BACKGROUND)
+        .frame(0, 0, width, height, 2, indices(random, width * height))
+        .disposal(DISPOSAL_METHOD_RESTORE)
+        .frame(1, 1, 2, 2, 2, indices(random, 2 * 2))
+        .build();
+    boolean[] covering = {true, false, false, true, true, false};
+
+    assertSameFrames(gif, covering);
+  }
+
+  @Test
+  public void fillsEndOfShortCoveringFrameWithFirstColor() throws IOException {
+    // The second frame's data ends after two pixels: clear, 1, 2, end.
+    byte[] gif = new GifBuilder(2, 2, COLORS, 0)
+        .frame(0, 0, 2, 2, 2, new byte[] {3, 3, 3, 3})
+        .frameData(0, 0, 2, 2, 2, LzwDecoderTest.pack(2, 4, 1, 2, 5), 255)
+        .build();
+
+    int[] pixels = assertSameFrames(gif, true, true);
+    assertEquals(Arrays.toString(new int[] {0xffff0000, 0xff00ff00, 0xff000000, 0xff000000}),
+        Arrays.toString(pixels));
+  }
+
+  /**
+   * Asserts that {@code gif} decodes to the same frames with and without covering frames decoded
+   * straight onto the canvas, and that only the {@code covering} frames are. Returns the last
+   * frame's pixels.
+   */
+  private static int[] assertSameFrames(byte[] gif, boolean... covering) throws IOException {
+    int[] pixels = null;
+    try (GifSource fast = new GifSource(new Buffer().write(gif));
+         GifSource slow = new GifSource(new Buffer().write(gif))) {
+      slow.setDecodeCovering(false);
+      for (int i = 0; i < covering.length; i++) {
+        GifSource.Frame expected = slow.readFrame();
+        GifSource.Frame actual = fast.readFrame();
+        assertEquals("covering[" + i + "]", covering[i], actual.indexData == null);
+        assertEquals("pixels[" + i + "]", Arrays.toString(expected.pixels()),
+            Arrays.toString(actual.pixels()));
+        assertEquals("dirtyBounds[" + i + "]", dirtyBounds(expected), dirtyBounds(actual));
+        pixels = actual.pixels();
+      }
+      assertEquals("end", null, fast.readFrame());
+    }
+    return pixels;
+  }
+
+  private static List<Integer> dirtyBounds(GifSource.Frame frame) {
+    return Arrays.asList(
+        frame.dirtyLeft(), frame.dirtyTop(), frame.dirtyRight(), frame.dirtyBottom());
+  }
+
+  private static byte[] indices(Random random, int count) {
+    byte[] indices = new byte[count];
+    for (int i = 0; i < count; i++) {
+      indices[i] = (byte) random.nextInt(COLORS.length);
+    }
+    return indices;
+  }
+}
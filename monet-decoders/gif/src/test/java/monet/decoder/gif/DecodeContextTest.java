@@ -0,0 +1,83 @@
+package monet.decoder.gif;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import okio.Buffer;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DecodeContextTest {
+
+  @Before
+  public void emptyPool() {
+    // Other tests leave contexts behind.
+    while (DecodeContext.poolSize() > 0) {
+      DecodeContext.acquire();
+    }
+  }
+
+  @Test
+  public void reusesContextOfClosedSource() throws IOException {
+    // fire.gif has frames of 30x60 pixels.
+    byte[] gif = GifDecoderTest.bytes("fire");
+    try (GifSource source = new GifSource(new Buffer().write(gif))) {
+      assertNotNull("frame", source.readFrame());
+      assertEquals("pooled while open", 0, DecodeContext.poolSize());
+    }
+    assertEquals("pooled after close", 1, DecodeContext.poolSize());
+
+    // The next source decodes with the same tables and index buffer.
+    DecodeContext context = DecodeContext.acquire();
+    assertNotNull("index buffer", context.indexData());
+    assertThat("index buffer", context.indexData().length, greaterThanOrEqualTo(30 * 60));
+    context.release();
+
+    try (GifSource source = new GifSource(new Buffer().write(gif))) {
+      assertNotNull("frame", source.readFrame());
+      assertEquals("pooled while open", 0, DecodeContext.poolSize());
+    }
+    assertSame("context", context, DecodeContext.acquire());
+  }
+
+  @Test
+  public void keepsIndexBufferUpToLimit() {
+    DecodeContext context = DecodeContext.acquire();
+    byte[] indexData = context.indexData(DecodeContext.MAX_POOLED_INDEX_SIZE);
+    context.release();
+
+    assertSame("context", context, DecodeContext.acquire());
+    assertSame("index buffer", indexData, context.indexData());
+  }
+
+  @Test
+  public void dropsLargeIndexBufferOnRelease() {
+    DecodeContext context = DecodeContext.acquire();
+    context.indexData(DecodeContext.MAX_POOLED_INDEX_SIZE + 1);
+    context.release();
+
+    assertSame("context", context, DecodeContext.acquire());
+    assertNull("index buffer", context.indexData());
+  }
+
+  @Test
+  public void poolHoldsAtMostMaxPoolSize() {
+    List<DecodeContext> contexts = new ArrayList<>();
+    for (int i = 0; i < DecodeContext.MAX_POOL_SIZE + 3; i++) {
+      contexts.add(DecodeContext.acquire());
+    }
+    for (DecodeContext context : contexts) {
+      context.release();
+      assertThat("pooled", DecodeContext.MAX_POOL_SIZE,
+          greaterThanOrEqualTo(DecodeContext.poolSize()));
+    }
+    assertEquals("pooled", DecodeContext.MAX_POOL_SIZE, DecodeContext.poolSize());
+  }
+}
@@ -0,0 +1,90 @@
+package monet.decoder.gif;
+
+import java.io.IOException;
+import okio.Buffer;
+
+/** Writes small GIFs for tests, frame by frame, with control over their image data. */
+final class GifBuilder {
+  private final Buffer gif = new Buffer();
+
+  // The next frame's graphic control extension.
+  private int disposal = GifSource.DISPOSAL_METHOD_LEAVE;
+  private int transparentIndex = -1;
+  private int delayTime;
+
+  /**
+   * Start a GIF of {@code width x height} with {@code colors} as its global color table, whose
+   * length must be a power of two from 2 to 256.
+   */
+  GifBuilder(int width, int height, int[] colors, int backgroundIndex) {
+    final int bits = Integer.numberOfTrailingZeros(colors.length);
+    gif.writeUtf8("GIF89a")
+        .writeShortLe(width)
+        .writeShortLe(height)
+        .writeByte(0x80 | (bits - 1))
+        .writeByte(backgroundIndex)
+        .writeByte(0);
+    for (int color : colors) {
+      gif.writeByte(color >> 16).writeByte(color >> 8).writeByte(color);
+    }
+  }
+
+  /** Dispose of the next frame with {@code disposal}. */
+  GifBuilder disposal(int disposal) {
+    this.disposal = disposal;
+    return this;
+  }
+
+  /** Make {@code index} transparent in the next frame, or nothing if -1. */
+  GifBuilder transparentIndex(int index) {
+    this.transparentIndex = index;
+    return this;
+  }
+
+  /** Show the next frame for {@code delayTime} hundredths of a second. */
+  GifBuilder delayTime(int delayTime) {
+    this.delayTime = delayTime;
+    return this;
+  }
+
+  /** Add a frame of {@code indices}, compressed with minimum code size {@code dataSize}. */
+  GifBuilder frame(int left, int top, int width, int height, int dataSize, byte[] indices)
+      throws IOException {
+    writeFrameHeader(left, top, width, height);
+    new LzwEncoder().encode(gif, dataSize, indices, indices.length);
+    return this;
+  }
+
+  /**
+   * Add a frame whose image data is the already packed LZW {@code data}, split into sub-blocks of
+   * {@code blockSize} bytes.
+   */
+  GifBuilder frameData(int left, int top, int width, int height, int dataSize, byte[] data,
+      int blockSize) {
+    writeFrameHeader(left, top, width, height);
+    final Buffer imageData = LzwDecoderTest.subBlocks(dataSize, data, blockSize);
+    gif.write(imageData, imageData.size());
+    return this;
+  }
+
+  private void writeFrameHeader(int left, int top, int width, int height) {
+    gif.writeByte(0x21).writeByte(0xf9).writeByte(4)
+        .writeByte(disposal << 2 | (transparentIndex != -1 ? 1 : 0))
+        .writeShortLe(delayTime)
+        .writeByte(Math.max(transparentIndex, 0))
+        .writeByte(0);
+    gif.writeByte(0x2c)
+        .writeShortLe(left)
+        .writeShortLe(top)
+        .writeShortLe(width)
+        .writeShortLe(height)
+        .writeByte(0);
+    disposal = GifSource.DISPOSAL_METHOD_LEAVE;
+    transparentIndex = -1;
+    delayTime = 0;
+  }
+
+  byte[] build() {
+    return gif.clone().writeByte(0x3b).readByteArray();
+  }
+}
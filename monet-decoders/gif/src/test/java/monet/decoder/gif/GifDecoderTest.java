@@ -0,0 +1,606 @@
+package monet.decoder.gif;
+
+import android.graphics.Rect;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import monet.Decoder;
+import monet.Image;
+import monet.IndexedImage;
+import monet.Request;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.robolectric.RobolectricTestRunner;
+
+import static monet.decoder.gif.GifStrategy.Mode.CACHE_ALL;
+import static monet.decoder.gif.GifStrategy.Mode.REDECODE;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class GifDecoderTest {
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void loopsReplayCachedFrames() throws IOException {
+    byte[] gif = withRepeatCount(bytes("fire"), 2);
+    List<Image> pass = decodeAll(GifDecoder.create(), gif);
+
+    GifDecoder decoder = new GifDecoder.Builder()
+        .loop(true)
+        .frameCacheSize(Long.MAX_VALUE)
+        .build();
+    TestSubscriber loops = decode(decoder, gif, Long.MAX_VALUE);
+
+    assertEquals("complete", true, loops.complete);
+    assertLoops(pass, loops.images, 3);
+  }
+
+  @Test
+  public void loopsDecodeAgainWithoutCache() throws IOException {
+    byte[] gif = withRepeatCount(bytes("fire"), 2);
+    List<Image> pass = decodeAll(GifDecoder.create(), gif);
+
+    GifDecoder decoder = new GifDecoder.Builder()
+        .loop(true)
+        .frameCacheSize(0)
+        .build();
+    TestSubscriber loops = decode(decoder, gif, Long.MAX_VALUE);
+
+    assertEquals("complete", true, loops.complete);
+    assertLoops(pass, loops.images, 3);
+  }
+
+  @Test
+  public void loopsForeverUntilCancelled() throws IOException {
+    byte[] gif = bytes("traffic");
+    List<Image> pass = decodeAll(GifDecoder.create(), gif);
+
+    GifDecoder decoder = new GifDecoder.Builder().loop(true).build();
+    TestSubscriber loops = decode(decoder, gif, pass.size() * 5);
+    loops.subscription.cancel();
+
+    assertEquals("complete", false, loops.complete);
+    assertLoops(pass, loops.images, 5);
+  }
+
+  @Test
+  public void playsOnceWithoutLoop() throws IOException {
+    byte[] gif = withRepeatCount(bytes("fire"), 2);
+    TestSubscriber once = decode(GifDecoder.create(), gif, Long.MAX_VALUE);
+
+    assertEquals("complete", true, once.complete);
+    assertEquals("frames", 33, once.images.size());
+  }
+
+  @Test
+  public void spilledFramesReplayLikeCachedFrames() throws IOException {
+    byte[] gif = withRepeatCount(bytes("fire"), 1);
+    for (boolean indexedColor : new boolean[] {false, true}) {
+      List<Image> cached = decodeAll(new GifDecoder.Builder()
+          .loop(true)
+          .indexedColor(indexedColor)
+          .frameCacheSize(Long.MAX_VALUE)
+          .build(), gif);
+
+      File directory = temporaryFolder.newFolder();
+      GifDecoder decoder = new GifDecoder.Builder()
+          .loop(true)
+          .indexedColor(indexedColor)
+          .frameCacheSize(1)
+          .frameSpillDirectory(directory)
+          .build();
+      TestSubscriber spilled = decode(decoder, gif, cached.size() / 2 + 1);
+      assertEquals("spill files", 1, directory.list().length);
+      // Each frame of the first pass takes only as many bytes as its pixels, one each if indexed.
+      long spilledBytes = 0;
+      for (Image image : spilled.images.subList(0, cached.size() / 2)) {
+        spilledBytes += image.width() * image.height() * (image instanceof IndexedImage ? 1 : 4);
+      }
+      assertEquals("spill file length", spilledBytes, directory.listFiles()[0].length());
+      spilled.subscription.request(Long.MAX_VALUE);
+
+      assertEquals("complete", true, spilled.complete);
+      assertEquals("frames", cached.size(), spilled.images.size());
+      for (int i = 0; i < cached.size(); i++) {
+        assertSameImage("frame " + i, cached.get(i), spilled.images.get(i));
+      }
+      assertEquals("spill files after completion", 0, directory.list().length);
+    }
+  }
+
+  @Test
+  public void spillFileIsDeletedOnCancel() throws IOException {
+    byte[] gif = withRepeatCount(bytes("fire"), 1);
+    File directory = temporaryFolder.newFolder();
+    GifDecoder decoder = new GifDecoder.Builder()
+        .loop(true)
+        .frameCacheSize(1)
+        .frameSpillDirectory(directory)
+        .build();
+
+    // Cancel while replaying from the spill file.
+    TestSubscriber spilled = decode(decoder, gif, 33 + 2);
+    assertEquals("spill files", 1, directory.list().length);
+    spilled.subscription.cancel();
+
+    assertEquals("spill files after cancel", 0, directory.list().length);
+    assertEquals("complete", false, spilled.complete);
+  }
+
+  @Test
+  public void loopsReplayFromRecording() throws IOException {
+    byte[] gif = withRepeatCount(bytes("fire"), 2);
+    List<Image> pass = decodeAll(GifDecoder.create(), gif);
+
+    File directory = temporaryFolder.newFolder();
+    GifDecoder decoder = new GifDecoder.Builder()
+        .loop(true)
+        .frameCacheSize(0)
+        .recordingDirectory(directory)
+        .build();
+    TrackingSource upstream = new TrackingSource(gif);
+    TestSubscriber loops =
+        decode(decoder.publisher(Request.builder(Okio.buffer(upstream)).build()), pass.size());
+    assertEquals("recording files", 1, directory.list().length);
+    assertEquals("upstream closed in first loop", false, upstream.closed);
+
+    // The second loop reads the recording, once upstream has been read to the end and closed.
+    loops.subscription.request(1);
+    assertEquals("upstream closed in second loop", true, upstream.closed);
+    loops.subscription.request(Long.MAX_VALUE);
+
+    assertEquals("complete", true, loops.complete);
+    assertLoops(pass, loops.images, 3);
+    assertEquals("recording files after completion", 0, directory.list().length);
+  }
+
+  @Test
+  public void recordingIsDeletedOnCancel() throws IOException {
+    byte[] gif = withRepeatCount(bytes("fire"), 2);
+    List<Image> pass = decodeAll(GifDecoder.create(), gif);
+
+    File directory = temporaryFolder.newFolder();
+    GifDecoder decoder = new GifDecoder.Builder()
+        .loop(true)
+        .frameCacheSize(0)
+        .recordingDirectory(directory)
+        .build();
+
+    // Cancel partway through the first loop, while the recording is still being written.
+    TrackingSource upstream = new TrackingSource(gif);
+    TestSubscriber cancelled =
+        decode(decoder.publisher(Request.builder(Okio.buffer(upstream)).build()), 10);
+    assertEquals("recording files", 1, directory.list().length);
+    cancelled.subscription.cancel();
+    assertEquals("upstream closed", true, upstream.closed);
+    assertEquals("recording files after cancel", 0, directory.list().length);
+
+    // A later subscriber records and replays the animation afresh.
+    TestSubscriber second = decode(decoder, gif, pass.size() + 10);
+    second.subscription.cancel();
+    assertLoops(pass, second.images.subList(0, pass.size()), 1);
+    assertLoops(pass.subList(0, 10), second.images.subList(pass.size(), pass.size() + 10), 1);
+    assertEquals("recording files after second cancel", 0, directory.list().length);
+  }
+
+  @Test
+  public void cancellingFromAnotherThreadStopsQuietly() throws Exception {
+    byte[] gif = withRepeatCount(bytes("fire"), GifSource.Header.REPEAT_FOREVER);
+
+    File directory = temporaryFolder.newFolder();
+    GifDecoder decoder = new GifDecoder.Builder()
+        .loop(true)
+        .frameCacheSize(0)
+        .recordingDirectory(directory)
+        .build();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Random random = new Random(0);
+      for (int i = 0; i < 50; i++) {
+        TrackingSource upstream = new TrackingSource(gif);
+        TestSubscriber subscriber = new TestSubscriber();
+        decoder.publisher(Request.builder(Okio.buffer(upstream)).build()).subscribe(subscriber);
+
+        // The animation loops forever, so the request only returns once cancelled.
+        long delay = random.nextInt(5000);
+        Future<?> canceller = executor.submit(() -> {
+          long deadline = System.nanoTime() + delay * 1000;
+          while (System.nanoTime() < deadline) {
+            // Spin, since sleeping takes too long.
+          }
+          subscriber.subscription.cancel();
+          return null;
+        });
+        subscriber.subscription.request(Long.MAX_VALUE);
+        canceller.get();
+
+        assertNull("error", subscriber.error);
+        assertEquals("complete", false, subscriber.complete);
+        assertEquals("upstream closed", true, upstream.closed);
+        assertEquals("closed while reading", false, upstream.closedWhileReading);
+        assertEquals("recording files", 0, directory.list().length);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void posterIsOnlyFirstFrame() throws IOException {
+    byte[] gif = withRepeatCount(bytes("fire"), 2);
+    List<Image> pass = decodeAll(GifDecoder.create(), gif);
+
+    TrackingSource upstream = new TrackingSource(gif);
+    TestSubscriber poster = decode(GifDecoder.create().publisher(
+        Request.builder(Okio.buffer(upstream)).poster(true).build()), Long.MAX_VALUE);
+    assertNull("error", poster.error);
+    assertEquals("complete", true, poster.complete);
+    assertLoops(pass.subList(0, 1), poster.images, 1);
+    assertEquals("upstream closed", true, upstream.closed);
+    assertThat("bytes read", upstream.bytesRead, lessThan((long) gif.length));
+
+    // Looping, caching decoders still stop after the first frame.
+    GifDecoder looping = new GifDecoder.Builder()
+        .loop(true)
+        .frameCacheSize(Long.MAX_VALUE)
+        .build();
+    TestSubscriber loopingPoster = decode(looping.publisher(
+        Request.builder(gif).poster(true).build()), Long.MAX_VALUE);
+    assertNull("error", loopingPoster.error);
+    assertEquals("complete", true, loopingPoster.complete);
+    assertLoops(pass.subList(0, 1), loopingPoster.images, 1);
+  }
+
+  @Test
+  public void decodesSeveralSizesInOnePass() throws IOException {
+    byte[] gif = bytes("fire");
+    int[][] sizes = {{0, 0}, {15, 0}, {10, 0}, {0, 15}};
+
+    for (boolean indexedColor : new boolean[] {false, true}) {
+      GifDecoder decoder = new GifDecoder.Builder().indexedColor(indexedColor).build();
+
+      List<Request> requests = new ArrayList<>();
+      Request first = Request.builder(gif).build();
+      for (int[] size : sizes) {
+        requests.add(first.newBuilder().size(size[0], size[1]).build());
+      }
+      SizesSubscriber subscriber = new SizesSubscriber();
+      decoder.publisher(requests).subscribe(subscriber);
+      subscriber.subscription.request(Long.MAX_VALUE);
+      assertNull("error", subscriber.error);
+      assertEquals("complete", true, subscriber.complete);
+
+      // Each size looks just like that size decoded on its own.
+      for (int i = 0; i < sizes.length; i++) {
+        TestSubscriber single = decode(decoder.publisher(
+            Request.builder(gif).size(sizes[i][0], sizes[i][1]).build()), Long.MAX_VALUE);
+        assertEquals("complete", true, single.complete);
+        assertEquals("frames", single.images.size(), subscriber.lists.size());
+        for (int frame = 0; frame < single.images.size(); frame++) {
+          List<Image> images = subscriber.lists.get(frame);
+          assertEquals("images", sizes.length, images.size());
+          assertSameImage("indexed " + indexedColor + " size " + i + " frame " + frame,
+              single.images.get(frame), images.get(i));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void choosesStrategyFromBoundedProbe() throws IOException {
+    byte[] gif = withRepeatCount(bytes("welcome2"), 2);
+    List<Image> pass = decodeAll(GifDecoder.create(), gif);
+
+    TrackingSource upstream = new TrackingSource(gif);
+    List<GifIndex> selected = new ArrayList<>();
+    List<GifIndex> reported = new ArrayList<>();
+    List<GifStrategy> strategies = new ArrayList<>();
+    long[] readWhenSelected = new long[1];
+    GifDecoder decoder = new GifDecoder.Builder()
+        .loop(true)
+        .strategyProbeSize(1024)
+        .strategySelector((index, sampleSize) -> {
+          selected.add(index);
+          readWhenSelected[0] = upstream.bytesRead;
+          return GifStrategy.forBudget(Long.MAX_VALUE).select(index, sampleSize);
+        })
+        .strategyListener((index, strategy) -> {
+          reported.add(index);
+          strategies.add(strategy);
+        })
+        .build();
+    TestSubscriber subscriber =
+        decode(decoder.publisher(Request.builder(Okio.buffer(upstream)).build()), Long.MAX_VALUE);
+
+    // Only the start of the GIF was read before choosing, so its size is unknown.
+    assertThat("read when selected", readWhenSelected[0], lessThan((long) gif.length));
+    assertEquals("selected", 1, selected.size());
+    assertEquals("complete index", false, selected.get(0).isComplete());
+    assertEquals("reported", selected, reported);
+    assertEquals("strategies", Collections.singletonList(new GifStrategy(REDECODE, 1)),
+        strategies);
+
+    // Decoded again from the recording, the animation still loops.
+    assertEquals("complete", true, subscriber.complete);
+    assertLoops(pass, subscriber.images, 3);
+  }
+
+  @Test
+  public void loopsWhenProbeEndsBeforeTrailer() throws IOException {
+    byte[] gif = withRepeatCount(bytes("fire"), GifSource.Header.REPEAT_FOREVER);
+    List<Image> pass = decodeAll(GifDecoder.create(), gif);
+
+    GifDecoder decoder = new GifDecoder.Builder()
+        .loop(true)
+        .strategyProbeSize(64)
+        .strategySelector(GifStrategy.forBudget(Long.MAX_VALUE))
+        .build();
+    TestSubscriber loops = decode(decoder.publisher(
+        Request.builder(Okio.buffer(new TrackingSource(gif))).build()), pass.size() * 3);
+    loops.subscription.cancel();
+
+    assertNull("error", loops.error);
+    assertLoops(pass, loops.images, 3);
+  }
+
+  @Test
+  public void appliesSelectedStrategy() throws IOException {
+    byte[] gif = withRepeatCount(bytes("fire"), 1);
+    List<Image> pass = decodeAll(GifDecoder.create(), gif);
+
+    List<Integer> sampleSizes = new ArrayList<>();
+    List<GifStrategy> strategies = new ArrayList<>();
+    GifDecoder decoder = new GifDecoder.Builder()
+        .loop(true)
+        .strategySelector((index, sampleSize) -> {
+          assertEquals("complete index", true, index.isComplete());
+          sampleSizes.add(sampleSize);
+          return new GifStrategy(CACHE_ALL, 2);
+        })
+        .strategyListener((index, strategy) -> strategies.add(strategy))
+        .build();
+    TestSubscriber subscriber = decode(decoder, gif, Long.MAX_VALUE);
+
+    assertEquals("sampleSizes", Collections.singletonList(1), sampleSizes);
+    assertEquals("strategies", Collections.singletonList(new GifStrategy(CACHE_ALL, 2)),
+        strategies);
+    assertEquals("complete", true, subscriber.complete);
+    assertEquals("frames", pass.size() * 2, subscriber.images.size());
+    for (Image image : subscriber.images) {
+      assertEquals("width", 15, image.width());
+      assertEquals("height", 30, image.height());
+    }
+  }
+
+  @Test
+  public void collapsesUnchangedFrames() throws IOException {
+    // Seven frames: a red canvas redrawn twice, a green square then a fully transparent frame
+    // over it, and a blue canvas followed by a blue pixel.
+    byte[] gif = bytes("repeated");
+    List<Image> frames = decodeAll(GifDecoder.create(), gif);
+    assertEquals("frames", 7, frames.size());
+
+    List<Image> collapsed = decodeAll(new GifDecoder.Builder().collapseFrames(true).build(), gif);
+    assertEquals("collapsed frames", 3, collapsed.size());
+
+    // Each collapsed frame stays on screen for all the frames which repeat it.
+    int first = 0;
+    for (int i = 0; i < collapsed.size(); i++) {
+      Image image = collapsed.get(i);
+      int delay = 0;
+      int end = first;
+      while (end < frames.size()
+          && Arrays.equals(frames.get(first).asPixels(), frames.get(end).asPixels())) {
+        delay += frames.get(end++).frameDelay();
+      }
+      assertEquals("pixels[" + i + "]", Arrays.toString(frames.get(first).asPixels()),
+          Arrays.toString(image.asPixels()));
+      assertEquals("frameDelay[" + i + "]", delay, image.frameDelay());
+      first = end;
+    }
+    assertEquals("end", frames.size(), first);
+    assertEquals("frameDelay[0]", 100 + 200 + 300, collapsed.get(0).frameDelay());
+    assertEquals("frameDelay[1]", 400 + 500, collapsed.get(1).frameDelay());
+    assertEquals("frameDelay[2]", 600 + 700, collapsed.get(2).frameDelay());
+  }
+
+  @Test
+  public void failedSeekClosesSource() throws IOException {
+    byte[] gif = bytes("fire");
+    byte[] truncated = Arrays.copyOf(gif, gif.length / 2);
+    while (DecodeContext.poolSize() > 0) {
+      DecodeContext.acquire();
+    }
+
+    TrackingSource upstream = new TrackingSource(truncated);
+    TestSubscriber subscriber = new TestSubscriber();
+    new GifDecoder.Builder().build()
+        .seekToFrame(Request.builder(Okio.buffer(upstream)).build(), 30)
+        .subscribe(subscriber);
+
+    assertEquals("error", true, subscriber.error instanceof IOException);
+    assertEquals("upstream closed", true, upstream.closed);
+    // The source decoded frames before failing, and returned its decode context once closed.
+    assertEquals("pooled contexts", 1, DecodeContext.poolSize());
+  }
+
+  @Test
+  public void deltaFrameWhichChangesNothingKeepsOnePixel() throws IOException {
+    // At half size, the second frame's only pixel falls between the sampled pixels.
+    byte[] gif = new GifBuilder(4, 4, new int[] {0x0000ff, 0xff0000}, 0)
+        .frame(0, 0, 4, 4, 2, new byte[16])
+        .delayTime(50)
+        .frame(1, 1, 1, 1, 2, new byte[] {1})
+        .build();
+    List<Image> whole = decodeAll(GifDecoder.create(), gif);
+
+    for (boolean indexedColor : new boolean[] {false, true}) {
+      GifDecoder decoder =
+          new GifDecoder.Builder().deltaFrames(true).indexedColor(indexedColor).build();
+      TestSubscriber subscriber =
+          decode(decoder.publisher(Request.builder(gif).size(2, 2).build()), Long.MAX_VALUE);
+      assertNull("error", subscriber.error);
+      assertEquals("frames", 2, subscriber.images.size());
+
+      Image delta = subscriber.images.get(1);
+      assertEquals("frameDelay", whole.get(1).frameDelay(), delta.frameDelay());
+      assertEquals("width", 1, delta.width());
+      assertEquals("height", 1, delta.height());
+      Rect dirty = delta.dirtyBounds();
+      assertEquals("dirtyBounds", Arrays.asList(0, 0, 1, 1),
+          Arrays.asList(dirty.left, dirty.top, dirty.right, dirty.bottom));
+      assertEquals("pixels", "[" + 0xff0000ff + "]", Arrays.toString(delta.asPixels()));
+    }
+  }
+
+  /** Asserts that {@code images} plays the frames of {@code pass} {@code loops} times over. */
+  static void assertLoops(List<Image> pass, List<Image> images, int loops) {
+    assertEquals("frames", pass.size() * loops, images.size());
+    for (int i = 0; i < images.size(); i++) {
+      assertSameImage("frame " + i, pass.get(i % pass.size()), images.get(i));
+    }
+  }
+
+  static void assertSameImage(String message, Image expected, Image actual) {
+    assertEquals(message + " frameDelay", expected.frameDelay(), actual.frameDelay());
+    assertEquals(message + " width", expected.width(), actual.width());
+    assertEquals(message + " height", expected.height(), actual.height());
+    assertEquals(message + " pixels", Arrays.toString(expected.asPixels()),
+        Arrays.toString(actual.asPixels()));
+  }
+
+  static byte[] bytes(String image) throws IOException {
+    try (BufferedSource gif = Okio.buffer(Okio.source(
+        GifDecoderTest.class.getResourceAsStream(image + ".gif")))) {
+      return gif.readByteArray();
+    }
+  }
+
+  /** Returns a copy of {@code gif} whose Netscape extension asks for {@code repeatCount}. */
+  static byte[] withRepeatCount(byte[] gif, int repeatCount) {
+    int extension = (int) ByteString.of(gif).indexOf(ByteString.encodeUtf8("NETSCAPE2.0"));
+    if (extension == -1) throw new IllegalArgumentException("no Netscape extension");
+    byte[] copy = gif.clone();
+    // Application identifier, sub-block size and sub-block ID, then the loop count.
+    copy[extension + 13] = (byte) repeatCount;
+    copy[extension + 14] = (byte) (repeatCount >> 8);
+    return copy;
+  }
+
+  static List<Image> decodeAll(Decoder decoder, byte[] gif) {
+    TestSubscriber subscriber = decode(decoder, gif, Long.MAX_VALUE);
+    assertNull("error", subscriber.error);
+    assertEquals("complete", true, subscriber.complete);
+    return subscriber.images;
+  }
+
+  static TestSubscriber decode(Decoder decoder, byte[] gif, long count) {
+    return decode(decoder.publisher(Request.builder(gif).build()), count);
+  }
+
+  static TestSubscriber decode(Publisher<? extends Image> publisher, long count) {
+    TestSubscriber subscriber = new TestSubscriber();
+    publisher.subscribe(subscriber);
+    subscriber.subscription.request(count);
+    return subscriber;
+  }
+
+  /** A source of {@code bytes} which counts the bytes read from it and whether it was closed. */
+  static final class TrackingSource extends ForwardingSource {
+    long bytesRead;
+    volatile boolean closed;
+    volatile boolean closedWhileReading;
+    private volatile boolean reading;
+
+    TrackingSource(byte[] bytes) {
+      super(new Buffer().write(bytes));
+    }
+
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      reading = true;
+      try {
+        final long read = super.read(sink, byteCount);
+        if (read > 0) bytesRead += read;
+        return read;
+      } finally {
+        reading = false;
+      }
+    }
+
+    @Override public void close() throws IOException {
+      if (reading) closedWhileReading = true;
+      closed = true;
+      super.close();
+    }
+  }
+
+  /** Records the lists of images a publisher of several sizes emits. */
+  static final class SizesSubscriber implements Subscriber<List<Image>> {
+    final List<List<Image>> lists = new ArrayList<>();
+    Subscription subscription;
+    boolean complete;
+    Throwable error;
+
+    @Override public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override public void onNext(List<Image> images) {
+      lists.add(images);
+    }
+
+    @Override public void onError(Throwable error) {
+      this.error = error;
+    }
+
+    @Override public void onComplete() {
+      complete = true;
+    }
+  }
+
+  /** Records what a publisher emits, requesting only as much as the test asks for. */
+  static final class TestSubscriber implements Subscriber<Image> {
+    final List<Image> images = new ArrayList<>();
+    Subscription subscription;
+    boolean complete;
+    Throwable error;
+
+    @Override public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override public void onNext(Image image) {
+      images.add(image);
+    }
+
+    @Override public void onError(Throwable error) {
+      this.error = error;
+    }
+
+    @Override public void onComplete() {
+      complete = true;
+    }
+  }
+}
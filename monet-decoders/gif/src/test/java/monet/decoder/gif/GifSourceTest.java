@@ -1,10 +1,20 @@
 package monet.decoder.gif;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import monet.IndexedImage;
 import okio.Buffer;
 import okio.BufferedSource;
 import okio.ByteString;
@@ -25,6 +35,7 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.junit.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 @RunWith(Parameterized.class)
 public class GifSourceTest {
@@ -107,8 +118,8 @@ public class GifSourceTest {
         assertEquals("sortFlag[" + i + "]", b(i + ".sortFlag"), frame.sortFlag);
         assertEquals("localColorTableSize[" + i + "]", i(i + ".localColorTableSize"), frame.localColorTableSize);
 
-        assertEquals("pixelData[" + i + "].size", header.width * header.height * 4,
-            frame.pixelData.size());
+        assertEquals("pixelData[" + i + "].size", header.width * header.height,
+            frame.pixelData.length);
         assertThat("pixelData[" + i + "]", withoutAlpha(frame.pixelData), rgb(rgbSource,
             header.width * header.height));
       }
@@ -117,6 +128,404 @@ public class GifSourceTest {
     assertThat("missing frames", i, equalTo(i("frames")));
   }
 
+  @Test
+  public void readsFramesAsSource() throws IOException {
+    Buffer expected = new Buffer();
+    try (GifSource frames = new GifSource(Okio.buffer(Okio.source(
+        getClass().getResourceAsStream(image + ".gif"))))) {
+      GifSource.Frame frame;
+      while ((frame = frames.readFrame()) != null) {
+        for (int pixel : frame.pixels()) {
+          expected.writeInt(pixel);
+        }
+      }
+    }
+
+    Buffer actual = new Buffer();
+    Random random = new Random(0);
+    while (gifSource.read(actual, 1 + random.nextInt(20000)) != -1) {
+      // Every frame is the same size, so the frame boundaries fall at multiples of it.
+      long frameSize = gifSource.currentFrame().pixels().length * 4L;
+      assertEquals("frameBytesRemaining", (frameSize - actual.size() % frameSize) % frameSize,
+          gifSource.frameBytesRemaining());
+    }
+    assertEquals(expected.size(), actual.size());
+    assertEquals(expected.readByteString(), actual.readByteString());
+  }
+
+  @Test
+  public void closingStopsDecoding() throws IOException {
+    gifSource.readFrame();
+    gifSource.close();
+    try {
+      gifSource.readFrame();
+      fail();
+    } catch (InterruptedIOException expected) {
+    }
+  }
+
+  @Test
+  public void closingFromAnotherThreadInterruptsDecoding() throws Exception {
+    byte[] bytes;
+    try (BufferedSource gif = Okio.buffer(Okio.source(
+        getClass().getResourceAsStream(image + ".gif")))) {
+      bytes = gif.readByteArray();
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Random random = new Random(image.hashCode());
+      for (int i = 0; i < 100; i++) {
+        GifSource source = new GifSource(Okio.buffer(Okio.source(
+            new ByteArrayInputStream(bytes))));
+        if (i % 2 == 1) source.setPipeline(executor, 2);
+
+        // Close at a random point of the decode.
+        CountDownLatch started = new CountDownLatch(1);
+        long delay = random.nextInt(500_000);
+        Future<?> closer = executor.submit(() -> {
+          started.await();
+          long deadline = System.nanoTime() + delay;
+          while (System.nanoTime() < deadline) {
+            // Spin, since sleeping takes too long.
+          }
+          source.close();
+          return null;
+        });
+        started.countDown();
+        try {
+          while (source.readFrame() != null) {
+            // Decode until closed or done.
+          }
+        } catch (IOException e) {
+          assertEquals("exception", InterruptedIOException.class, e.getClass());
+        }
+        closer.get();
+
+        // Buffers in use when the source was closed must not have been recycled.
+        try (GifSource fresh = new GifSource(Okio.buffer(Okio.source(
+            new ByteArrayInputStream(bytes))))) {
+          int frames = 0;
+          while (fresh.readFrame() != null) frames++;
+          assertEquals("frames after close " + i, i("frames"), frames);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void dirtyBoundsCoverChangedPixels() throws IOException {
+    GifSource.Header header = gifSource.readHeader();
+    GifSource.Frame frame;
+    int[] prev = null;
+
+    for (int i = 0; (frame = gifSource.readFrame()) != null; i++) {
+      int[] pixels = frame.pixels();
+      if (prev == null) {
+        assertEquals("dirtyBounds[0]", Arrays.asList(0, 0, header.width, header.height),
+            Arrays.asList(frame.dirtyLeft(), frame.dirtyTop(), frame.dirtyRight(),
+                frame.dirtyBottom()));
+      } else {
+        for (int p = 0; p < pixels.length; p++) {
+          int x = p % header.width;
+          int y = p / header.width;
+          if (x >= frame.dirtyLeft() && x < frame.dirtyRight()
+              && y >= frame.dirtyTop() && y < frame.dirtyBottom()) {
+            continue;
+          }
+          assertEquals("pixel " + x + "," + y + " outside dirtyBounds[" + i + "]", prev[p],
+              pixels[p]);
+        }
+      }
+      prev = pixels.clone();
+    }
+  }
+
+  @Test
+  public void seeksToFrames() throws IOException {
+    byte[] bytes;
+    try (BufferedSource gif = Okio.buffer(Okio.source(
+        getClass().getResourceAsStream(image + ".gif")))) {
+      bytes = gif.readByteArray();
+    }
+
+    ArrayList<int[]> expected = new ArrayList<>();
+    GifSource.Frame frame;
+    while ((frame = gifSource.readFrame()) != null) {
+      expected.add(frame.pixels().clone());
+    }
+
+    try (GifSource seekable = new GifSource(SeekableSource.of(bytes))) {
+      GifIndex index = seekable.index();
+      assertEquals("frameCount", expected.size(), index.frameCount());
+      seekable.setKeyframeInterval(2);
+
+      int count = index.frameCount();
+      int[] order = new int[count * 2];
+      for (int i = 0; i < count; i++) {
+        order[i] = i;
+        order[count + i] = count - 1 - i;
+      }
+
+      for (int target : order) {
+        seekable.seekToFrame(target);
+        frame = seekable.readFrame();
+        assertEquals("pixels[" + target + "]", Arrays.toString(expected.get(target)),
+            Arrays.toString(frame.pixels()));
+      }
+
+      for (int target = count - 1; target >= 0; target--) {
+        long time = index.startTime(target) + index.delayTime(target) / 2;
+        seekable.seekToTime(time);
+        frame = seekable.readFrame();
+        assertEquals("pixels@" + time, Arrays.toString(expected.get(index.frameAt(time))),
+            Arrays.toString(frame.pixels()));
+      }
+    }
+  }
+
+  @Test
+  public void probesFrames() throws IOException {
+    ByteString bytes;
+    try (BufferedSource gif = Okio.buffer(Okio.source(
+        getClass().getResourceAsStream(image + ".gif")))) {
+      bytes = gif.readByteString();
+    }
+
+    Buffer buffer = new Buffer().write(bytes);
+    GifIndex index = GifSource.probe(buffer);
+    assertEquals("complete", true, index.isComplete());
+    assertEquals("width", i("width"), index.header().width());
+
+    // Probing doesn't consume the source.
+    GifSource decoded = new GifSource(buffer);
+    decoded.readHeader();
+    GifSource.Frame frame;
+    int count = 0;
+    while ((frame = decoded.readFrame()) != null) {
+      assertEquals("delayTime[" + count + "]", frame.delayTime, index.delayTime(count));
+      assertEquals("bounds[" + count + "]", frame.imageWidth, index.bounds(count).width());
+      count++;
+    }
+    assertEquals("frameCount", count, index.frameCount());
+
+    // Data which ends inside the last frame has every frame but the last.
+    int end = (int) index.offset(count - 1) + 1;
+    GifIndex partial = GifSource.probe(new Buffer().write(bytes.substring(0, end)));
+    assertEquals("partial complete", false, partial.isComplete());
+    assertEquals("partial frameCount", count - 1, partial.frameCount());
+  }
+
+  @Test
+  public void samplesFrames() throws IOException {
+    GifSource.Header header = gifSource.readHeader();
+    int sampleSize = 3;
+    int width = (header.width + sampleSize - 1) / sampleSize;
+    int height = (header.height + sampleSize - 1) / sampleSize;
+
+    try (GifSource sampled = new GifSource(Okio.buffer(Okio.source(
+        getClass().getResourceAsStream(image + ".gif"))))) {
+      sampled.setSampleSize(sampleSize);
+      GifSource.Frame frame;
+      for (int i = 0; (frame = gifSource.readFrame()) != null; i++) {
+        GifSource.Frame sampledFrame = sampled.readFrame();
+        assertEquals("canvasWidth[" + i + "]", width, sampledFrame.canvasWidth());
+        assertEquals("canvasHeight[" + i + "]", height, sampledFrame.canvasHeight());
+
+        int[] expected = new int[width * height];
+        for (int y = 0; y < height; y++) {
+          for (int x = 0; x < width; x++) {
+            expected[y * width + x] =
+                frame.pixels()[y * sampleSize * header.width + x * sampleSize];
+          }
+        }
+        assertEquals("pixels[" + i + "]", Arrays.toString(expected),
+            Arrays.toString(sampledFrame.pixels()));
+      }
+    }
+  }
+
+  @Test
+  public void indexesFrames() throws IOException {
+    gifSource.readHeader();
+    Palette palette = new Palette();
+    GifSource.Frame frame;
+    for (int i = 0; (frame = gifSource.readFrame()) != null; i++) {
+      int[] pixels = frame.pixels();
+      ByteBuffer indices = palette.index(
+          pixels, 0, frame.canvasWidth(), frame.canvasWidth(), frame.canvasHeight());
+      // Frames composited from several color tables may have too many colors.
+      if (indices == null) continue;
+      IndexedImage image = new IndexedImage(frame.canvasWidth(), frame.canvasHeight(), 0,
+          indices, palette.colorTable(), null);
+      assertEquals("pixels[" + i + "]", Arrays.toString(pixels),
+          Arrays.toString(image.asPixels()));
+    }
+  }
+
+  @Test
+  public void pipelinedFramesMatch() throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try (GifSource pipelined = new GifSource(Okio.buffer(Okio.source(
+        getClass().getResourceAsStream(image + ".gif"))))) {
+      pipelined.setPipeline(executor, 4);
+      GifSource.Frame frame;
+      for (int i = 0; (frame = gifSource.readFrame()) != null; i++) {
+        GifSource.Frame pipelinedFrame = pipelined.readFrame();
+        assertEquals("delayTime[" + i + "]", frame.delayTime, pipelinedFrame.delayTime);
+        assertEquals("pixels[" + i + "]", Arrays.toString(frame.pixels()),
+            Arrays.toString(pipelinedFrame.pixels()));
+      }
+      assertEquals("extra frames", null, pipelined.readFrame());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void parallelFramesMatch() throws IOException {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try (GifSource serial = new GifSource(Okio.buffer(Okio.source(
+        getClass().getResourceAsStream(image + ".gif"))));
+         GifSource parallel = new GifSource(Okio.buffer(Okio.source(
+             getClass().getResourceAsStream(image + ".gif"))))) {
+      // Draw every frame in parallel, in bands of a few rows, including interlaced previews.
+      serial.setProgressive(true);
+      parallel.setProgressive(true);
+      parallel.setCompositingPool(pool, 1, 64);
+      GifSource.Frame frame;
+      for (int i = 0; (frame = serial.readFrame()) != null; i++) {
+        GifSource.Frame parallelFrame = parallel.readFrame();
+        assertEquals("provisional[" + i + "]", frame.isProvisional(),
+            parallelFrame.isProvisional());
+        assertEquals("pixels[" + i + "]", Arrays.toString(frame.pixels()),
+            Arrays.toString(parallelFrame.pixels()));
+      }
+      assertEquals("extra frames", null, parallel.readFrame());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void parsesFedChunks() throws IOException {
+    Buffer gif = new Buffer();
+    gif.readFrom(getClass().getResourceAsStream(image + ".gif"));
+
+    ArrayList<int[]> expected = new ArrayList<>();
+    GifSource.Frame frame;
+    while ((frame = gifSource.readFrame()) != null) {
+      expected.add(frame.pixels().clone());
+    }
+
+    ArrayList<int[]> actual = new ArrayList<>();
+    boolean[] complete = new boolean[1];
+    GifParser parser = new GifParser(new GifParser.Callback() {
+      @Override public void onHeader(GifSource.Header header) {
+        assertEquals("width", i("width"), header.width);
+      }
+
+      @Override public void onFrame(GifSource.Frame frame) {
+        actual.add(frame.pixels().clone());
+      }
+
+      @Override public void onProvisionalFrame(GifSource.Frame frame) {
+        throw new AssertionError("not progressive");
+      }
+
+      @Override public void onComplete() {
+        complete[0] = true;
+      }
+    });
+
+    Random random = new Random(image.hashCode());
+    while (gif.size() > 0) {
+      Buffer chunk = new Buffer();
+      gif.read(chunk, Math.min(gif.size(), 1 + random.nextInt(300)));
+      parser.feed(chunk);
+    }
+    parser.finish();
+
+    assertEquals("complete", true, complete[0]);
+    assertEquals("frames", expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals("pixels[" + i + "]", Arrays.toString(expected.get(i)),
+          Arrays.toString(actual.get(i)));
+    }
+  }
+
+  @Test
+  public void readsInterlacedFramesProgressively() throws IOException {
+    try (GifSource progressive = new GifSource(Okio.buffer(Okio.source(
+        getClass().getResourceAsStream(image + ".gif"))))) {
+      progressive.setProgressive(true);
+      GifSource.Frame frame;
+      for (int i = 0; (frame = gifSource.readFrame()) != null; i++) {
+        int[] expected = frame.pixels().clone();
+        int passes = 0;
+        GifSource.Frame progressiveFrame;
+        while ((progressiveFrame = progressive.readFrame()).isProvisional()) {
+          assertEquals("interlaced[" + i + "]", true, frame.interlaceFlag);
+          passes++;
+          assertEquals("pixels[" + i + "].length", expected.length,
+              progressiveFrame.pixels().length);
+        }
+        assertThat("passes[" + i + "]", passes, lessThan(4));
+        if (image.endsWith("-interlaced")) assertEquals("previewed[" + i + "]", true, passes > 0);
+        assertEquals("pixels[" + i + "]", Arrays.toString(expected),
+            Arrays.toString(progressiveFrame.pixels()));
+      }
+      assertEquals("extra frames", null, progressive.readFrame());
+    }
+  }
+
+  @Test
+  public void writesFramesWhichReadBack() throws IOException {
+    Buffer gif = new Buffer();
+    ArrayList<int[]> expected = new ArrayList<>();
+    ArrayList<Integer> expectedDelays = new ArrayList<>();
+    GifSource.Header header = gifSource.readHeader();
+    try (GifSink sink = new GifSink(gif, header.width(), header.height())) {
+      sink.setRepeatCount(header.repeatCount());
+      GifSource.Frame frame;
+      while ((frame = gifSource.readFrame()) != null) {
+        sink.writeFrame(frame);
+        addFrame(expected, expectedDelays, frame);
+      }
+    }
+
+    ArrayList<int[]> actual = new ArrayList<>();
+    ArrayList<Integer> actualDelays = new ArrayList<>();
+    try (GifSource written = new GifSource(gif)) {
+      assertEquals("repeatCount", header.repeatCount(), written.readHeader().repeatCount());
+      GifSource.Frame frame;
+      while ((frame = written.readFrame()) != null) {
+        addFrame(actual, actualDelays, frame);
+      }
+    }
+
+    // Frames which change nothing are merged into the frame before them.
+    assertEquals("frames", expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals("pixels[" + i + "]", Arrays.toString(expected.get(i)),
+          Arrays.toString(actual.get(i)));
+    }
+    assertEquals("delays", expectedDelays, actualDelays);
+  }
+
+  private static void addFrame(ArrayList<int[]> pixels, ArrayList<Integer> delays,
+      GifSource.Frame frame) {
+    int last = pixels.size() - 1;
+    if (last >= 0 && Arrays.equals(pixels.get(last), frame.pixels())) {
+      delays.set(last, delays.get(last) + frame.delayTime());
+    } else {
+      pixels.add(frame.pixels().clone());
+      delays.add(frame.delayTime());
+    }
+  }
+
   private boolean b(String key) {
     return Boolean.valueOf(p.getProperty(key));
   }
@@ -125,12 +534,12 @@ public class GifSourceTest {
     return Integer.valueOf(p.getProperty(key));
   }
 
-  private ByteString withoutAlpha(ByteString pixelData) {
+  private ByteString withoutAlpha(int[] pixelData) {
     Buffer buf = new Buffer();
-    for (int i = 0; i < pixelData.size(); i += 4) {
-      buf.writeByte(pixelData.getByte(i + 1));
-      buf.writeByte(pixelData.getByte(i + 2));
-      buf.writeByte(pixelData.getByte(i + 3));
+    for (int pixel : pixelData) {
+      buf.writeByte(pixel >> 16);
+      buf.writeByte(pixel >> 8);
+      buf.writeByte(pixel);
     }
     return buf.snapshot();
   }
@@ -0,0 +1,76 @@
+package monet.decoder.gif;
+
+import java.io.IOException;
+import okio.Buffer;
+import org.junit.Before;
+import org.junit.Test;
+
+import static monet.decoder.gif.GifStrategy.Mode.CACHE_ALL;
+import static monet.decoder.gif.GifStrategy.Mode.REDECODE;
+import static monet.decoder.gif.GifStrategy.Mode.STREAM;
+import static org.junit.Assert.assertEquals;
+
+public class GifStrategyTest {
+  // fire.gif has 33 frames of 30x60 pixels.
+  private static final long FRAME_BYTES = 30 * 60 * 4;
+
+  private byte[] gif;
+  private GifIndex index;
+
+  @Before
+  public void setup() throws IOException {
+    gif = GifDecoderTest.bytes("fire");
+    index = GifSource.probe(new Buffer().write(gif));
+  }
+
+  @Test
+  public void cachesAnimationsWhichFit() {
+    long budget = index.decodedByteCount(1);
+    assertEquals(new GifStrategy(CACHE_ALL, 1), GifStrategy.forBudget(budget).select(index, 1));
+  }
+
+  @Test
+  public void keepsRequestedSampleSize() {
+    long budget = index.decodedByteCount(3);
+    assertEquals(new GifStrategy(CACHE_ALL, 3), GifStrategy.forBudget(budget).select(index, 3));
+  }
+
+  @Test
+  public void decodesAgainWhenOnlyCompressedDataFits() {
+    long budget = index.byteCount() + FRAME_BYTES * 2;
+    assertEquals(new GifStrategy(REDECODE, 1), GifStrategy.forBudget(budget).select(index, 1));
+  }
+
+  @Test
+  public void streamsWhenCompressedDataDoesNotFit() {
+    long budget = index.byteCount() + FRAME_BYTES * 2 - 1;
+    assertEquals(new GifStrategy(STREAM, 1), GifStrategy.forBudget(budget).select(index, 1));
+  }
+
+  @Test
+  public void downsamplesWhenOneFrameDoesNotFit() {
+    // At a sample size of 2, frames are 15x30.
+    long budget = FRAME_BYTES * 2 - 1;
+    assertEquals(new GifStrategy(STREAM, 2), GifStrategy.forBudget(budget).select(index, 1));
+  }
+
+  @Test
+  public void decodesIncompleteIndexAgain() throws IOException {
+    GifIndex partial = GifSource.probe(new Buffer().write(gif), gif.length / 2);
+    assertEquals("complete", false, partial.isComplete());
+    assertEquals(new GifStrategy(REDECODE, 1),
+        GifStrategy.forBudget(Long.MAX_VALUE).select(partial, 1));
+  }
+
+  @Test
+  public void streamsIncompleteIndexWhenIndexedDataDoesNotFit() throws IOException {
+    GifIndex partial = GifSource.probe(new Buffer().write(gif), gif.length / 2);
+    long budget = partial.byteCount() + FRAME_BYTES * 2 - 1;
+    assertEquals(new GifStrategy(STREAM, 1), GifStrategy.forBudget(budget).select(partial, 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNegativeBudget() {
+    GifStrategy.forBudget(-1);
+  }
+}
@@ -0,0 +1,269 @@
+package monet.decoder.gif;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.junit.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+
+public class LzwDecoderTest {
+  private static final int MAX_CODES = 4096;
+  private static final int MAX_CODE_SIZE = 12;
+
+  @Test
+  public void decodesCodeNotYetInDictionary() throws IOException {
+    // Clear, "0", "1", then 6 = "01" and 7 = "10" are added as 1 and 6 are read. 8 arrives before
+    // its entry exists, so it must be "01" plus its own first index: "010".
+    byte[] data = pack(2, 4, 0, 1, 6, 8, 5);
+    byte[] expected = {0, 1, 0, 1, 0, 1, 0};
+    assertDecodes(expected, 2, data, 255);
+  }
+
+  @Test
+  public void decodesRunOfCodesNotYetInDictionary() throws IOException {
+    // A run of one index encodes as a chain of codes which each arrive before their entries.
+    byte[] data = pack(2, 4, 1, 6, 7, 8, 5);
+    byte[] expected = new byte[1 + 2 + 3 + 4];
+    Arrays.fill(expected, (byte) 1);
+    assertDecodes(expected, 2, data, 255);
+  }
+
+  @Test
+  public void keepsFullDictionaryWithoutClearCode() throws IOException {
+    // Few distinct indices, so that strings recur and even the last entry is used.
+    byte[] indices = indices(2, 200_000, 0);
+    Encoded encoded = encode(8, indices);
+    // Plenty of codes are read after the dictionary fills, all of them 12 bits wide.
+    assertThat("codes after the dictionary is full", encoded.codesAfterFull, greaterThan(1000));
+    assertEquals("last entry used", true, encoded.usesCode(MAX_CODES - 1));
+
+    assertDecodes(indices, 8, pack(8, encoded.codes), 255);
+  }
+
+  @Test
+  public void decodesCodesSplitAcrossSubBlocks() throws IOException {
+    byte[] indices = indices(2, 200_000, 1);
+    byte[] data = pack(8, encode(8, indices).codes);
+    for (int blockSize : new int[] {1, 2, 3, 7}) {
+      assertDecodes(indices, 8, data, blockSize);
+    }
+  }
+
+  @Test
+  public void decodesCodesSplitAcrossPushedSubBlocks() {
+    byte[] indices = indices(2, 200_000, 2);
+    byte[] data = pack(8, encode(8, indices).codes);
+
+    // Push sub-blocks of odd sizes, so that 12-bit codes start at every bit offset and many span
+    // two or three sub-blocks.
+    LzwDecoder lzw = new LzwDecoder();
+    byte[] out = new byte[indices.length];
+    lzw.start(8, out, out.length);
+    int[] sizes = {1, 2, 3, 5, 7, 11, 255};
+    for (int offset = 0, i = 0; offset < data.length; i++) {
+      int size = Math.min(sizes[i % sizes.length], data.length - offset);
+      lzw.decode(data, offset, size);
+      offset += size;
+    }
+    assertEquals("finished", true, lzw.finished());
+    assertEquals("indices", ByteString.of(indices), ByteString.of(out));
+  }
+
+  @Test
+  public void parsesCodesSplitAcrossSubBlocksFedByteByByte() throws IOException {
+    int width = 400;
+    int height = 500;
+    byte[] indices = indices(2, width * height, 3);
+    int[] colors = new int[256];
+    for (int i = 0; i < colors.length; i++) {
+      colors[i] = i * 0x010101;
+    }
+    byte[] gif = new GifBuilder(width, height, colors, 0)
+        .frameData(0, 0, width, height, 8, pack(8, encode(8, indices).codes), 7)
+        .build();
+
+    List<int[]> frames = new ArrayList<>();
+    GifParser parser = new GifParser(new GifParser.Callback() {
+      @Override public void onHeader(GifSource.Header header) {
+      }
+
+      @Override public void onFrame(GifSource.Frame frame) {
+        frames.add(frame.pixels().clone());
+      }
+
+      @Override public void onProvisionalFrame(GifSource.Frame frame) {
+        throw new AssertionError("not progressive");
+      }
+
+      @Override public void onComplete() {
+      }
+    });
+    for (byte b : gif) {
+      parser.feed(new Buffer().writeByte(b));
+    }
+    parser.finish();
+
+    assertEquals("frames", 1, frames.size());
+    int[] pixels = frames.get(0);
+    for (int i = 0; i < indices.length; i++) {
+      if (pixels[i] != (0xff000000 | colors[indices[i]])) {
+        throw new AssertionError("pixels[" + i + "]: " + Integer.toHexString(pixels[i]));
+      }
+    }
+  }
+
+  @Test
+  public void stopsAtEndCode() throws IOException {
+    byte[] data = pack(2, 4, 1, 2, 5, 3, 3);
+    LzwDecoder lzw = new LzwDecoder();
+    byte[] out = new byte[4];
+    lzw.start(2, out, out.length);
+    lzw.decode(data, 0, data.length);
+    assertEquals("finished", true, lzw.finished());
+    assertEquals("position", 2, lzw.position());
+
+    // Pixels missing from the data are cleared.
+    lzw.finish();
+    assertEquals("[1, 2, 0, 0]", Arrays.toString(out));
+  }
+
+  /**
+   * Asserts that {@code data}, packed codes of minimum code size {@code dataSize}, decodes to
+   * {@code expected} both as indices and as colors, read from sub-blocks of {@code blockSize}.
+   */
+  static void assertDecodes(byte[] expected, int dataSize, byte[] data, int blockSize)
+      throws IOException {
+    LzwDecoder lzw = new LzwDecoder();
+    byte[] out = new byte[expected.length];
+    lzw.read(subBlocks(dataSize, data, blockSize), out, out.length);
+    assertEquals("indices", ByteString.of(expected), ByteString.of(out));
+
+    int[] colors = new int[1 << dataSize];
+    for (int i = 0; i < colors.length; i++) {
+      colors[i] = 0xff000000 | i * 0x010203;
+    }
+    int[] pixels = new int[expected.length];
+    lzw.read(subBlocks(dataSize, data, blockSize), pixels, colors, pixels.length);
+    for (int i = 0; i < expected.length; i++) {
+      if (pixels[i] != colors[expected[i] & 0xff]) {
+        throw new AssertionError("pixels[" + i + "]: " + Integer.toHexString(pixels[i]));
+      }
+    }
+  }
+
+  /** Returns image data holding the minimum code size and {@code data} in sub-blocks. */
+  static Buffer subBlocks(int dataSize, byte[] data, int blockSize) {
+    Buffer buffer = new Buffer().writeByte(dataSize);
+    for (int offset = 0; offset < data.length; offset += blockSize) {
+      int size = Math.min(blockSize, data.length - offset);
+      buffer.writeByte(size).write(data, offset, size);
+    }
+    return buffer.writeByte(0);
+  }
+
+  /** Returns {@code count} indices of {@code dataSize} bits, with runs to give strings to match. */
+  static byte[] indices(int dataSize, int count, long seed) {
+    Random random = new Random(seed);
+    byte[] indices = new byte[count];
+    for (int i = 0; i < count; ) {
+      int index = random.nextInt(1 << dataSize);
+      for (int run = 1 + random.nextInt(4); run > 0 && i < count; run--) {
+        indices[i++] = (byte) index;
+      }
+    }
+    return indices;
+  }
+
+  /**
+   * Packs {@code codes} least significant bit first, widening them as a decoder does: one bit
+   * more once the dictionary holds as many entries as the current width can address, up to 12.
+   */
+  static byte[] pack(int dataSize, int... codes) {
+    int clearCode = 1 << dataSize;
+    int codeSize = dataSize + 1;
+    int available = clearCode + 2;
+    boolean first = true;
+
+    Buffer buffer = new Buffer();
+    long datum = 0;
+    int bits = 0;
+    for (int code : codes) {
+      datum |= (long) code << bits;
+      bits += codeSize;
+      while (bits >= 8) {
+        buffer.writeByte((int) datum);
+        datum >>>= 8;
+        bits -= 8;
+      }
+
+      if (code == clearCode) {
+        codeSize = dataSize + 1;
+        available = clearCode + 2;
+        first = true;
+      } else if (first) {
+        first = false;
+      } else if (available < MAX_CODES) {
+        available++;
+        if (available == 1 << codeSize && codeSize < MAX_CODE_SIZE) codeSize++;
+      }
+    }
+    if (bits > 0) buffer.writeByte((int) datum);
+    return buffer.readByteArray();
+  }
+
+  /**
+   * Encodes {@code indices} as LZW codes, starting with a clear code and ending with an end code.
+   * Unlike {@link LzwEncoder}, this never clears a full dictionary but goes on using it as is.
+   */
+  static Encoded encode(int dataSize, byte[] indices) {
+    int clearCode = 1 << dataSize;
+    Map<Integer, Integer> dictionary = new HashMap<>();
+    int available = clearCode + 2;
+
+    Encoded encoded = new Encoded();
+    int[] codes = new int[indices.length + 2];
+    int count = 0;
+    codes[count++] = clearCode;
+    int prefix = indices[0] & 0xff;
+    for (int i = 1; i < indices.length; i++) {
+      int index = indices[i] & 0xff;
+      Integer code = dictionary.get(prefix << 8 | index);
+      if (code != null) {
+        prefix = code;
+        continue;
+      }
+      codes[count++] = prefix;
+      if (available < MAX_CODES) {
+        dictionary.put(prefix << 8 | index, available++);
+      } else {
+        encoded.codesAfterFull++;
+      }
+      prefix = index;
+    }
+    codes[count++] = prefix;
+    codes[count++] = clearCode + 1;
+    encoded.codes = Arrays.copyOf(codes, count);
+    return encoded;
+  }
+
+  static final class Encoded {
+    int[] codes;
+    int codesAfterFull;
+
+    boolean usesCode(int code) {
+      for (int c : codes) {
+        if (c == code) return true;
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package monet.decoder.gif;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class PaletteTest {
+
+  @Test
+  public void indexesFramesWhoseColorsTogetherOverflow() {
+    Palette palette = new Palette();
+    // Ten frames of 40 colors each, none shared, so 400 colors in all.
+    for (int frame = 0; frame < 10; frame++) {
+      int[] pixels = new int[40 * 3];
+      for (int i = 0; i < pixels.length; i++) {
+        pixels[i] = 0xff000000 | (frame * 40 + i % 40);
+      }
+      assertIndexes("frame " + frame, palette, pixels);
+    }
+  }
+
+  @Test
+  public void rejectsFrameWithTooManyColorsOfItsOwn() {
+    Palette palette = new Palette();
+    assertIndexes("before", palette, colors(0, 10));
+
+    assertNull("too many colors", palette.index(colors(0, 257), 0, 257, 257, 1));
+
+    // The next frame starts afresh.
+    assertIndexes("after", palette, colors(1000, 256));
+    assertEquals("size", 256, palette.size());
+  }
+
+  @Test
+  public void keepsColorTableForFramesSharingColors() {
+    Palette palette = new Palette();
+    assertIndexes("first", palette, colors(0, 16));
+    int[] colorTable = palette.colorTable();
+    assertIndexes("second", palette, colors(8, 8));
+    assertEquals("same color table", true, colorTable == palette.colorTable());
+  }
+
+  private static int[] colors(int first, int count) {
+    int[] pixels = new int[count];
+    for (int i = 0; i < count; i++) {
+      pixels[i] = 0xff000000 | (first + i);
+    }
+    return pixels;
+  }
+
+  /** Asserts that {@code palette} indexes {@code pixels}, as one row, to the same colors. */
+  private static void assertIndexes(String message, Palette palette, int[] pixels) {
+    ByteBuffer indices = palette.index(pixels, 0, pixels.length, pixels.length, 1);
+    assertNotNull(message + " indexed", indices);
+    int[] colorTable = palette.colorTable();
+    for (int i = 0; i < pixels.length; i++) {
+      assertEquals(message + " pixels[" + i + "]", pixels[i], colorTable[indices.get(i) & 0xff]);
+    }
+  }
+}
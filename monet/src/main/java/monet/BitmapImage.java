@@ -1,6 +1,7 @@
 package monet;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import java.nio.Buffer;
 import java.nio.IntBuffer;
 
@@ -10,6 +11,7 @@ public class BitmapImage implements Image {
   private final Bitmap bitmap;
   private Buffer buffer;
   private int[] pixels;
+  private Rect dirtyBounds;
 
   public BitmapImage(Bitmap bitmap) {
     this(bitmap, 0);
@@ -32,6 +34,13 @@ public class BitmapImage implements Image {
     return frameDelay;
   }
 
+  @Override public Rect dirtyBounds() {
+    if (dirtyBounds == null) {
+      dirtyBounds = new Rect(0, 0, width(), height());
+    }
+    return dirtyBounds;
+  }
+
   @Override public Buffer asBuffer() {
     if (buffer == null) {
       buffer = IntBuffer.allocate(width() * height());
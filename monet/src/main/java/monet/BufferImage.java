@@ -1,6 +1,8 @@
 package monet;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.Nullable;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 
@@ -10,6 +12,7 @@ public class BufferImage implements Image {
   private final int height;
   private final int frameDelay;
   private final ByteBuffer buffer;
+  private Rect dirtyBounds;
   private int[] pixels;
   private Bitmap bitmap;
 
@@ -18,10 +21,20 @@ public class BufferImage implements Image {
   }
 
   public BufferImage(int width, int height, int frameDelay, ByteBuffer buffer) {
+    this(width, height, frameDelay, buffer, null);
+  }
+
+  /**
+   * Create an image whose {@linkplain #dirtyBounds() dirty bounds} are {@code dirtyBounds}. If
+   * null, the whole image is dirty.
+   */
+  public BufferImage(int width, int height, int frameDelay, ByteBuffer buffer,
+      @Nullable Rect dirtyBounds) {
     this.width = width;
     this.height = height;
     this.frameDelay = frameDelay;
     this.buffer = buffer;
+    this.dirtyBounds = dirtyBounds;
   }
 
   @Override public int width() {
@@ -36,6 +49,13 @@ public class BufferImage implements Image {
     return frameDelay;
   }
 
+  @Override public Rect dirtyBounds() {
+    if (dirtyBounds == null) {
+      dirtyBounds = new Rect(0, 0, width, height);
+    }
+    return dirtyBounds;
+  }
+
   @Override public Buffer asBuffer() {
     return buffer;
   }
@@ -1,6 +1,10 @@
 package monet;
 
+import java.util.Collections;
+import java.util.List;
 import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 /** Decode a {@link Request} into some arbitrary type representing an image. */
 public abstract class Decoder {
@@ -8,4 +12,45 @@ public abstract class Decoder {
   public abstract boolean supports(Request request);
 
   public abstract Publisher<? extends Image> publisher(Request request);
+
+  /**
+   * Decode the image read by {@code requests}, which share one source and differ only in size,
+   * once for all of them. Each list emitted holds one image for each request, in the same order.
+   * <p>
+   * The default implementation only supports a single request, and signals a {@link
+   * DecodeException} to subscribers otherwise; decoders which can derive several sizes from one
+   * decode override it.
+   */
+  public Publisher<? extends List<Image>> publisher(List<Request> requests) {
+    if (requests.size() != 1) {
+      return (Publisher<List<Image>>) s -> {
+        s.onSubscribe(new Subscription() {
+          @Override public void request(long n) {
+          }
+
+          @Override public void cancel() {
+          }
+        });
+        s.onError(new DecodeException(getClass().getSimpleName() + " can't decode several sizes"));
+      };
+    }
+    final Publisher<? extends Image> publisher = publisher(requests.get(0));
+    return (Publisher<List<Image>>) s -> publisher.subscribe(new Subscriber<Image>() {
+      @Override public void onSubscribe(Subscription subscription) {
+        s.onSubscribe(subscription);
+      }
+
+      @Override public void onNext(Image image) {
+        s.onNext(Collections.singletonList(image));
+      }
+
+      @Override public void onError(Throwable t) {
+        s.onError(t);
+      }
+
+      @Override public void onComplete() {
+        s.onComplete();
+      }
+    });
+  }
 }
@@ -1,12 +1,28 @@
 package monet;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.Nullable;
 import java.nio.Buffer;
 
 public interface Image {
   int width();
   int height();
   int frameDelay();
+
+  /**
+   * The region which changed since the previous image in the same sequence, in the coordinates of
+   * the full canvas, or null if the whole image changed. The whole image changes for still images
+   * and the first frame of an animation, and for any image whose class doesn't override this.
+   * <p>
+   * A <em>delta</em> image only holds the pixels inside this region: its {@link #width()} and
+   * {@link #height()} are those of the region, and it should be drawn at the region's top-left
+   * corner over the previous image.
+   */
+  @Nullable default Rect dirtyBounds() {
+    return null;
+  }
+
   Buffer asBuffer();
   int[] asPixels();
   Bitmap asBitmap();
@@ -18,6 +18,23 @@ public final class Monet {
     return decoder(request).publisher(request);
   }
 
+  /**
+   * Decode one image at several sizes in a single pass. The {@code requests} must share one
+   * source, as those made with {@link Request#newBuilder()} do, and usually differ only in their
+   * target size or view. Each list emitted holds one image for each request, in the same order;
+   * animations emit one list per frame.
+   */
+  public Publisher<? extends List<Image>> decode(List<Request> requests) {
+    if (requests.isEmpty()) throw new IllegalArgumentException("requests is empty");
+    final Request first = requests.get(0);
+    for (int i = 1; i < requests.size(); i++) {
+      if (requests.get(i).source() != first.source()) {
+        throw new IllegalArgumentException("requests must share one source");
+      }
+    }
+    return decoder(first).publisher(requests);
+  }
+
   private Decoder decoder(Request request) {
     for (int i = 0; i < decoders.size(); i++) {
       final Decoder decoder = decoders.get(i);
@@ -39,6 +39,7 @@ import okio.Okio;
   private static Builder builder() {
     return new AutoValue_Request.Builder()
         .config(Bitmap.Config.ARGB_8888)
+        .poster(false)
         .targetHeight(0)
         .targetWidth(0);
   }
@@ -55,6 +56,8 @@ import okio.Okio;
 
   @Nullable public abstract ImageView.ScaleType scale();
 
+  public abstract boolean poster();
+
   public abstract BufferedSource source();
 
   public abstract int targetWidth();
@@ -77,6 +80,13 @@ import okio.Okio;
      */
     public abstract Builder scale(@Nullable ImageView.ScaleType scaleType);
 
+    /**
+     * Decode only the first frame of an animated image, as a still preview for lists and
+     * thumbnails. Decoders emit that single image and close the source straight away, without
+     * setting up anything for later frames. Decoders of still images ignore this.
+     */
+    public abstract Builder poster(boolean poster);
+
     /**
      * Scale the decoded image to fit this view's bounds.
      * <p>
@@ -0,0 +1,34 @@
+package monet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexedImageTest {
+  private static final int[] COLOR_TABLE = {0xff000000, 0xffff0000, 0x00000000};
+
+  private final ByteBuffer indices = ByteBuffer.wrap(new byte[] {0, 1, 2, 1, 0, 2});
+  private final IndexedImage image = new IndexedImage(3, 2, 0, indices, COLOR_TABLE, null);
+
+  @Test
+  public void expandsPixelsFromColorTable() {
+    int[] expected = {0xff000000, 0xffff0000, 0x00000000, 0xffff0000, 0xff000000, 0x00000000};
+    assertEquals(Arrays.toString(expected), Arrays.toString(image.asPixels()));
+  }
+
+  @Test
+  public void bufferHoldsArgbPixels() {
+    ByteBuffer argb = ByteBuffer.allocate(6 * 4);
+    argb.asIntBuffer().put(image.asPixels());
+    BufferImage expected = new BufferImage(3, 2, argb);
+    assertEquals(expected.asBuffer(), image.asBuffer());
+  }
+
+  @Test
+  public void exposesIndicesAndColorTable() {
+    assertEquals(indices, image.indices());
+    assertEquals(Arrays.toString(COLOR_TABLE), Arrays.toString(image.colorTable()));
+  }
+}
@@ -0,0 +1,150 @@
+package monet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class MonetTest {
+  private static final byte[] IMAGE = {1, 2, 3, 4};
+
+  private final Request request = Request.builder(IMAGE).build();
+
+  @Test
+  public void rejectsNoRequests() {
+    Monet monet = new Monet.Builder().add(new SingleDecoder(true)).build();
+    try {
+      monet.decode(Collections.<Request>emptyList());
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void rejectsRequestsForDifferentSources() {
+    Monet monet = new Monet.Builder().add(new SingleDecoder(true)).build();
+    try {
+      monet.decode(Arrays.asList(request, Request.builder(IMAGE).size(1, 1).build()));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void decodesSizesWithFirstSupportingDecoder() {
+    SizesDecoder unsupported = new SizesDecoder(false);
+    SizesDecoder supported = new SizesDecoder(true);
+    Monet monet = new Monet.Builder().add(unsupported).add(supported).build();
+
+    List<Request> requests = Arrays.asList(request, request.newBuilder().size(1, 1).build());
+    monet.decode(requests);
+    assertNull("unsupported decoder", unsupported.requests);
+    assertSame("requests", requests, supported.requests);
+  }
+
+  @Test
+  public void decodesSingleSizeWithoutSupport() {
+    Monet monet = new Monet.Builder().add(new SingleDecoder(true)).build();
+
+    SizesSubscriber subscriber = new SizesSubscriber();
+    monet.decode(Collections.singletonList(request)).subscribe(subscriber);
+    subscriber.subscription.request(Long.MAX_VALUE);
+    assertNull("error", subscriber.error);
+    assertEquals("complete", true, subscriber.complete);
+    assertEquals("lists", 1, subscriber.lists.size());
+    assertEquals("images", 1, subscriber.lists.get(0).size());
+    assertSame("image", SingleDecoder.IMAGE, subscriber.lists.get(0).get(0));
+  }
+
+  @Test
+  public void signalsErrorForSeveralSizesWithoutSupport() {
+    Monet monet = new Monet.Builder().add(new SingleDecoder(true)).build();
+
+    // The error goes to the subscriber, rather than being thrown by decode().
+    Publisher<? extends List<Image>> publisher =
+        monet.decode(Arrays.asList(request, request.newBuilder().size(1, 1).build()));
+    SizesSubscriber subscriber = new SizesSubscriber();
+    publisher.subscribe(subscriber);
+    assertEquals("error", DecodeException.class, subscriber.error.getClass());
+    assertEquals("lists", 0, subscriber.lists.size());
+    assertEquals("complete", false, subscriber.complete);
+  }
+
+  /** Decodes every request to one image, at one size at a time. */
+  static class SingleDecoder extends Decoder {
+    static final Image IMAGE = new BufferImage(1, 1, ByteBuffer.allocate(4));
+
+    private final boolean supports;
+
+    SingleDecoder(boolean supports) {
+      this.supports = supports;
+    }
+
+    @Override public boolean supports(Request request) {
+      return supports;
+    }
+
+    @Override public Publisher<? extends Image> publisher(Request request) {
+      return (Publisher<Image>) s -> s.onSubscribe(new Subscription() {
+        @Override public void request(long n) {
+          s.onNext(IMAGE);
+          s.onComplete();
+        }
+
+        @Override public void cancel() {
+        }
+      });
+    }
+  }
+
+  /** Records the requests it is asked to decode at several sizes. */
+  static final class SizesDecoder extends SingleDecoder {
+    List<Request> requests;
+
+    SizesDecoder(boolean supports) {
+      super(supports);
+    }
+
+    @Override public Publisher<? extends List<Image>> publisher(List<Request> requests) {
+      this.requests = requests;
+      return super.publisher(requests);
+    }
+  }
+
+  /** Records the lists of images a publisher of several sizes emits. */
+  static final class SizesSubscriber implements Subscriber<List<Image>> {
+    final List<List<Image>> lists = new ArrayList<>();
+    Subscription subscription;
+    boolean complete;
+    Throwable error;
+
+    @Override public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override public void onNext(List<Image> images) {
+      lists.add(images);
+    }
+
+    @Override public void onError(Throwable error) {
+      this.error = error;
+    }
+
+    @Override public void onComplete() {
+      complete = true;
+    }
+  }
+}